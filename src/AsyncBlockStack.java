@@ -0,0 +1,340 @@
+import common.Semaphore;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class AsyncBlockStack
+ * Non-blocking front of a BlockStack for callers that must not sit in
+ * mutex.P() waiting for a block or for room:
+ *
+ *  - acquireAsync() returns a future completed with a block as soon as there is one;
+ *  - releaseAsync() returns a future completed once the block is in.
+ *
+ * Requests that cannot be served right away are queued, in arrival order,
+ * and served by the opposite operation itself: a release hands its block
+ * straight to the oldest pending acquire (the block never touches the stack),
+ * and an acquire that frees a slot pushes the oldest pending release into it.
+ * A waiter costs a queued future, not a parked thread.
+ *
+ * Futures are completed outside the lock, so their callbacks may call back in.
+ * A pending acquire that gets cancelled or times out (orTimeout()) leaves the
+ * queue at once; a block handed to it at that very moment goes to the next
+ * waiter or back in, and the release's future is that of the retry. A pending release
+ * cannot be taken back: its block goes in once there is room, even if its
+ * future was cancelled.
+ *
+ * Blocks pushed onto the empty stack itself still turn into 'a', as in BlockStack.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class AsyncBlockStack
+{
+	private final BlockStack oStack;
+
+	/**
+	 * Guards the stack and both queues
+	 */
+	private final Semaphore oMutex = new Semaphore(1);
+
+	/**
+	 * Pending requests, oldest first. Only one of them is ever non-empty:
+	 * acquires wait for an empty stack, releases for a full one.
+	 */
+	private final ArrayDeque<CompletableFuture<Character>> oPendingAcquires = new ArrayDeque<CompletableFuture<Character>>();
+	private final ArrayDeque<PendingRelease> oPendingReleases = new ArrayDeque<PendingRelease>();
+
+	/**
+	 * Blocks passed from a release directly to a pending acquire
+	 */
+	private final AtomicLong oHandOffs = new AtomicLong();
+
+	/**
+	 * @param poStack the stack to serve; only to be used through this object from now on
+	 */
+	public AsyncBlockStack(final BlockStack poStack)
+	{
+		this.oStack = poStack;
+	}
+
+	/**
+	 * Asks for a block.
+	 * @return a future completed with the block, at once if the stack has one
+	 */
+	public CompletableFuture<Character> acquireAsync()
+	{
+		CompletableFuture<Character> oFuture;
+		PendingRelease oServed = null;
+
+		this.oMutex.P();
+		try
+		{
+			if (this.oStack.isEmpty())
+			{
+				final CompletableFuture<Character> oPending = new CompletableFuture<Character>();
+				this.oPendingAcquires.add(oPending);
+
+				// Cancelled or timed out: do not keep it queued until a release comes along.
+				oPending.whenComplete(new java.util.function.BiConsumer<Character, Throwable>()
+				{
+					public void accept(Character poBlock, Throwable poFailure)
+					{
+						if (poFailure != null)
+							forget(oPending);
+					}
+				});
+
+				return oPending;
+			}
+
+			oFuture = CompletableFuture.completedFuture(this.oStack.pop());
+
+			// The slot just freed goes to the oldest release waiting for room.
+			oServed = this.oPendingReleases.poll();
+			if (oServed != null)
+				this.oStack.push(oServed.cBlock);
+		}
+		catch(EmptyStackException e)
+		{
+			throw new IllegalStateException("Stack emptied behind our back", e);
+		}
+		catch(FullStackException e)
+		{
+			throw new IllegalStateException("Stack filled behind our back", e);
+		}
+		finally
+		{
+			this.oMutex.V();
+		}
+
+		if (oServed != null)
+			oServed.oFuture.complete(null);
+
+		return oFuture;
+	}
+
+	/**
+	 * Gives a block back.
+	 * @return a future completed once the block is taken, at once if there is room or somebody waiting
+	 */
+	public CompletableFuture<Void> releaseAsync(final char pcBlock)
+	{
+		CompletableFuture<Void> oFuture;
+		CompletableFuture<Character> oWaiter;
+
+		this.oMutex.P();
+		try
+		{
+			oWaiter = nextWaiter();
+
+			if (oWaiter == null)
+			{
+				if (isFull())
+				{
+					PendingRelease oPending = new PendingRelease(pcBlock);
+					this.oPendingReleases.add(oPending);
+					return oPending.oFuture;
+				}
+
+				this.oStack.push(pcBlock);
+			}
+		}
+		catch(FullStackException e)
+		{
+			throw new IllegalStateException("Stack filled behind our back", e);
+		}
+		finally
+		{
+			this.oMutex.V();
+		}
+
+		oFuture = CompletableFuture.completedFuture(null);
+
+		if (oWaiter != null)
+		{
+			if (oWaiter.complete(pcBlock))
+				this.oHandOffs.incrementAndGet();
+			else
+				return releaseAsync(pcBlock);   // cancelled at the last moment: next waiter, or the stack
+		}
+
+		return oFuture;
+	}
+
+	/**
+	 * @return number of acquires waiting for a block
+	 */
+	public int getPendingAcquires()
+	{
+		this.oMutex.P();
+		try
+		{
+			return this.oPendingAcquires.size();
+		}
+		finally
+		{
+			this.oMutex.V();
+		}
+	}
+
+	/**
+	 * @return number of releases waiting for room
+	 */
+	public int getPendingReleases()
+	{
+		this.oMutex.P();
+		try
+		{
+			return this.oPendingReleases.size();
+		}
+		finally
+		{
+			this.oMutex.V();
+		}
+	}
+
+	/**
+	 * @return number of blocks passed from a release directly to a waiting acquire
+	 */
+	public long getHandOffs()
+	{
+		return this.oHandOffs.get();
+	}
+
+	/**
+	 * @return the underlying stack; only to be inspected once nothing is pending
+	 */
+	public BlockStack getStack()
+	{
+		return this.oStack;
+	}
+
+	/**
+	 * Oldest pending acquire still interested. Must hold oMutex.
+	 */
+	private CompletableFuture<Character> nextWaiter()
+	{
+		CompletableFuture<Character> oWaiter;
+
+		while ((oWaiter = this.oPendingAcquires.poll()) != null)
+			if (!oWaiter.isDone())
+				return oWaiter;
+
+		return null;
+	}
+
+	/**
+	 * Drops a pending acquire that completed without a block.
+	 * Completions with a block happen once it is off the queue, outside oMutex.
+	 */
+	private void forget(final CompletableFuture<Character> poWaiter)
+	{
+		this.oMutex.P();
+		try
+		{
+			this.oPendingAcquires.remove(poWaiter);
+		}
+		finally
+		{
+			this.oMutex.V();
+		}
+	}
+
+	/**
+	 * BlockStack.isFull() only trips one slot too late. Must hold oMutex.
+	 */
+	private boolean isFull()
+	{
+		return this.oStack.getITop() == this.oStack.getISize() - 1;
+	}
+
+	/**
+	 * A block waiting for room.
+	 */
+	private static final class PendingRelease
+	{
+		final char cBlock;
+		final CompletableFuture<Void> oFuture = new CompletableFuture<Void>();
+
+		PendingRelease(final char pcBlock)
+		{
+			this.cBlock = pcBlock;
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		int iWaiters = argv.length > 0 ? Integer.parseInt(argv[0]) : 10000;
+
+		try
+		{
+			BlockStack oStack = new BlockStack();
+			oStack.setVerbose(false);
+
+			final AsyncBlockStack oAsync = new AsyncBlockStack(oStack);
+			final AtomicInteger oServed = new AtomicInteger();
+			int iThreads = Thread.activeCount();
+
+			// Far more acquires than blocks: all but the first few wait, without any thread.
+			for (int i = 0; i < iWaiters; i++)
+			{
+				oAsync.acquireAsync().thenAccept(new java.util.function.Consumer<Character>()
+				{
+					public void accept(Character poBlock)
+					{
+						oServed.incrementAndGet();
+					}
+				});
+			}
+
+			System.out.println(iWaiters + " acquires: " + oServed.get() + " served at once, " +
+					oAsync.getPendingAcquires() + " pending, " + Thread.activeCount() + " thread(s) alive (" + iThreads + " before).");
+
+			// Every release goes straight to a waiter.
+			for (int i = 0; i < iWaiters; i++)
+				oAsync.releaseAsync((char)('a' + i % 26));
+
+			System.out.println(iWaiters + " releases: " + oServed.get() + " acquires served, " +
+					oAsync.getHandOffs() + " hand-offs, " + oAsync.getPendingAcquires() + " pending.");
+
+			// Cancelled and timed-out acquires must not pile up in the queue.
+			for (int i = 0; i < iWaiters; i++)
+				oAsync.acquireAsync().cancel(false);
+			oAsync.acquireAsync().orTimeout(10, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+			long lGiveUp = System.currentTimeMillis() + 5000;
+			while (oAsync.getPendingAcquires() > 0 && System.currentTimeMillis() < lGiveUp)
+				Thread.sleep(10);
+
+			System.out.println(iWaiters + " cancelled acquires and 1 timed out: " + oAsync.getPendingAcquires() + " pending.");
+			if (oAsync.getPendingAcquires() > 0)
+				throw new IllegalStateException("Abandoned acquires are still queued");
+
+			// Now the other way round: fill the stack and queue releases.
+			int iReleased = 0;
+			for (int i = 0; i < 10; i++)
+				if (oAsync.releaseAsync('z').isDone())
+					iReleased++;
+
+			System.out.println("10 releases: " + iReleased + " done at once, " + oAsync.getPendingReleases() + " pending for room.");
+
+			for (int i = 0; i < 10 - iReleased; i++)
+				oAsync.acquireAsync().join();
+
+			System.out.println("Acquired " + (10 - iReleased) + ": " + oAsync.getPendingReleases() + " releases pending, top = " + oStack.getITop() + ".");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,397 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Class BlockClient
+ * Client side of BlockServer. Not thread-safe: use one client per thread.
+ *
+ * push(), pop() and pick() each take a network round trip. To go faster,
+ * queue several operations and execute them together:
+ *
+ *  - pipeline(): independent requests, written PIPELINE_WINDOW at a time
+ *                before reading their answers;
+ *  - batch():    one request applied atomically by the server: all of it or,
+ *                if any operation fails, none of it (the others report ST_ABORTED).
+ *
+ * Usage: java BlockClient [host port]
+ *   runs a quick self-check against a server, or against one it starts on localhost.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class BlockClient implements Closeable
+{
+	/**
+	 * Most requests written before reading their responses. Beyond what the
+	 * socket buffers hold, client and server would both block writing.
+	 */
+	static final int PIPELINE_WINDOW = 1024;
+
+	private final SocketChannel oChannel;
+	private ByteBuffer oOut = ByteBuffer.allocateDirect(4096);
+	private ByteBuffer oIn = ByteBuffer.allocateDirect(4096);
+	private int iNextId = 1;
+
+	/**
+	 * Connects to a BlockServer.
+	 */
+	public BlockClient(final String pstrHost, final int piPort)
+			throws IOException
+	{
+		this.oChannel = SocketChannel.open(new InetSocketAddress(pstrHost, piPort));
+		this.oChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+	}
+
+	/**
+	 * Standard push operation, remotely
+	 * @throws FullStackException
+	 */
+	public void push(final char pcBlock)
+			throws IOException, FullStackException
+	{
+		Reply oReply = pipeline().push(pcBlock).execute()[0];
+
+		if (oReply.getStatus() == BlockProtocol.ST_FULL)
+			throw new FullStackException();
+		oReply.check();
+	}
+
+	/**
+	 * Standard pop operation, remotely
+	 * @return ex-top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pop()
+			throws IOException, EmptyStackException
+	{
+		return value(pipeline().pop().execute()[0]);
+	}
+
+	/**
+	 * Picks a value from the top without modifying the stack, remotely
+	 * @return top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pick()
+			throws IOException, EmptyStackException
+	{
+		return value(pipeline().pick().execute()[0]);
+	}
+
+	/**
+	 * @return a builder for requests sent back to back without waiting for each answer
+	 */
+	public Requests pipeline()
+	{
+		return new Requests(false);
+	}
+
+	/**
+	 * @return a builder for a batch the server applies atomically
+	 */
+	public Requests batch()
+	{
+		return new Requests(true);
+	}
+
+	public void close()
+			throws IOException
+	{
+		this.oChannel.close();
+	}
+
+	private static char value(final Reply poReply)
+			throws IOException, EmptyStackException
+	{
+		if (poReply.getStatus() == BlockProtocol.ST_EMPTY)
+			throw new EmptyStackException();
+		poReply.check();
+
+		return poReply.getValue();
+	}
+
+	/**
+	 * Sends the encoded requests and reads back the given number of response bytes.
+	 */
+	private ByteBuffer exchange(final int piResponseBytes)
+			throws IOException
+	{
+		this.oOut.flip();
+		while (this.oOut.hasRemaining())
+			this.oChannel.write(this.oOut);
+		this.oOut.clear();
+
+		if (this.oIn.capacity() < piResponseBytes)
+			this.oIn = ByteBuffer.allocateDirect(Math.max(piResponseBytes, this.oIn.capacity() * 2));
+
+		this.oIn.clear().limit(piResponseBytes);
+
+		while (this.oIn.hasRemaining())
+			if (this.oChannel.read(this.oIn) < 0)
+				throw new EOFException("Server closed the connection");
+
+		this.oIn.flip();
+		return this.oIn;
+	}
+
+	private ByteBuffer reserve(final int piBytes)
+	{
+		if (this.oOut.remaining() < piBytes)
+		{
+			ByteBuffer oBigger = ByteBuffer.allocateDirect(Math.max(this.oOut.capacity() * 2, this.oOut.position() + piBytes));
+			this.oOut.flip();
+			oBigger.put(this.oOut);
+			this.oOut = oBigger;
+		}
+
+		return this.oOut;
+	}
+
+	/**
+	 * Class Requests
+	 * Operations queued for a single exchange with the server.
+	 */
+	public final class Requests
+	{
+		private final boolean bAtomic;
+		private byte[] abOps = new byte[8];
+		private char[] acArgs = new char[8];
+		private int iCount = 0;
+
+		private Requests(final boolean pbAtomic)
+		{
+			this.bAtomic = pbAtomic;
+		}
+
+		public Requests push(final char pcBlock)
+		{
+			return add(BlockProtocol.OP_PUSH, pcBlock);
+		}
+
+		public Requests pop()
+		{
+			return add(BlockProtocol.OP_POP, '\0');
+		}
+
+		public Requests pick()
+		{
+			return add(BlockProtocol.OP_PICK, '\0');
+		}
+
+		private Requests add(final byte pbOp, final char pcArg)
+		{
+			if (this.bAtomic && this.iCount == BlockProtocol.MAX_BATCH)
+				throw new IllegalStateException("A batch holds at most " + BlockProtocol.MAX_BATCH + " operations");
+
+			if (this.iCount == this.abOps.length)
+			{
+				this.abOps = Arrays.copyOf(this.abOps, this.iCount * 2);
+				this.acArgs = Arrays.copyOf(this.acArgs, this.iCount * 2);
+			}
+
+			this.abOps[this.iCount] = pbOp;
+			this.acArgs[this.iCount] = pcArg;
+			this.iCount++;
+
+			return this;
+		}
+
+		/**
+		 * Sends everything queued and waits for all the answers: a batch in one
+		 * write, a pipeline in windows of PIPELINE_WINDOW requests.
+		 * @return one reply per operation, in order
+		 */
+		public Reply[] execute()
+				throws IOException
+		{
+			Reply[] aoReplies = new Reply[this.iCount];
+			int iFirstId = iNextId;
+
+			if (this.bAtomic)
+			{
+				ByteBuffer oOut = reserve(BlockProtocol.REQUEST_HEADER_SIZE + 2 + this.iCount * 3);
+				oOut.put(BlockProtocol.OP_BATCH).putInt(iNextId++).putShort((short)this.iCount);
+
+				for (int i = 0; i < this.iCount; i++)
+				{
+					oOut.put(this.abOps[i]);
+					if (this.abOps[i] == BlockProtocol.OP_PUSH)
+						oOut.putChar(this.acArgs[i]);
+				}
+
+				ByteBuffer oIn = exchange(BlockProtocol.RESPONSE_SIZE + this.iCount * BlockProtocol.BATCH_RESULT_SIZE);
+				expect(oIn.getInt(), iFirstId);
+				oIn.get();
+				oIn.getShort();
+
+				for (int i = 0; i < this.iCount; i++)
+					aoReplies[i] = new Reply(oIn.get(), oIn.getChar());
+			}
+			else
+			{
+				for (int iFrom = 0; iFrom < this.iCount; iFrom += PIPELINE_WINDOW)
+				{
+					int iTo = Math.min(this.iCount, iFrom + PIPELINE_WINDOW);
+
+					for (int i = iFrom; i < iTo; i++)
+					{
+						ByteBuffer oOut = reserve(BlockProtocol.REQUEST_HEADER_SIZE + 2);
+						oOut.put(this.abOps[i]).putInt(iNextId++);
+						if (this.abOps[i] == BlockProtocol.OP_PUSH)
+							oOut.putChar(this.acArgs[i]);
+					}
+
+					ByteBuffer oIn = exchange((iTo - iFrom) * BlockProtocol.RESPONSE_SIZE);
+
+					for (int i = iFrom; i < iTo; i++)
+					{
+						expect(oIn.getInt(), iFirstId + i);
+						aoReplies[i] = new Reply(oIn.get(), oIn.getChar());
+					}
+				}
+			}
+
+			this.iCount = 0;
+			return aoReplies;
+		}
+
+		private void expect(final int piId, final int piExpected)
+				throws IOException
+		{
+			if (piId != piExpected)
+				throw new IOException("Out of order response: got #" + piId + ", expected #" + piExpected);
+		}
+	}
+
+	/**
+	 * Class Reply
+	 * Outcome of one operation.
+	 */
+	public static final class Reply
+	{
+		private final byte bStatus;
+		private final char cValue;
+
+		Reply(final byte pbStatus, final char pcValue)
+		{
+			this.bStatus = pbStatus;
+			this.cValue = pcValue;
+		}
+
+		/**
+		 * @return one of the BlockProtocol.ST_* codes
+		 */
+		public byte getStatus()
+		{
+			return this.bStatus;
+		}
+
+		public boolean isOk()
+		{
+			return this.bStatus == BlockProtocol.ST_OK;
+		}
+
+		/**
+		 * @return block popped or picked
+		 */
+		public char getValue()
+		{
+			return this.cValue;
+		}
+
+		/**
+		 * Turns a protocol error into an exception; stack conditions are left to the caller.
+		 */
+		void check()
+				throws IOException
+		{
+			if (this.bStatus == BlockProtocol.ST_BAD_REQUEST)
+				throw new IOException("Server rejected the request");
+		}
+
+		public String toString()
+		{
+			if (!isOk())
+				return "status " + this.bStatus;
+
+			return this.cValue == '\0' ? "ok" : String.valueOf(this.cValue);
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		BlockServer oServer = null;
+
+		try
+		{
+			String strHost = "localhost";
+			int iPort;
+
+			if (argv.length >= 2)
+			{
+				strHost = argv[0];
+				iPort = Integer.parseInt(argv[1]);
+			}
+			else
+			{
+				BlockStack oStack = new BlockStack();
+				oStack.setVerbose(false);
+				oServer = new BlockServer(oStack, new InetSocketAddress("localhost", 0));
+				oServer.start();
+				iPort = oServer.getPort();
+				System.out.println("Started a BlockServer on localhost:" + iPort + ".");
+			}
+
+			BlockClient oClient = new BlockClient(strHost, iPort);
+
+			System.out.println("pick() = " + oClient.pick());
+			System.out.println("pop() = " + oClient.pop());
+			oClient.push('x');
+			System.out.println("push('x'), pick() = " + oClient.pick());
+
+			Reply[] aoPipelined = oClient.pipeline().pop().pop().push('y').pick().execute();
+			System.out.println("pipelined pop, pop, push('y'), pick = " + Arrays.toString(aoPipelined));
+
+			Reply[] aoBatch = oClient.batch().pop().push('z').pick().execute();
+			System.out.println("batch pop, push('z'), pick = " + Arrays.toString(aoBatch));
+
+			int iRounds = 100000;
+			long lStart = System.nanoTime();
+			for (int i = 0; i < iRounds; i++)
+				oClient.pipeline().pop().push('q').execute();
+			long lNanos = System.nanoTime() - lStart;
+
+			System.out.println(String.format("%d pipelined pop/push pairs: %.0f ops/s", iRounds, 2.0 * iRounds / (lNanos / 1e9)));
+
+			oClient.close();
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+		finally
+		{
+			try
+			{
+				if (oServer != null)
+					oServer.close();
+			}
+			catch(Exception e)
+			{
+				System.err.println("Caught exception while stopping the server: " + e.getMessage());
+			}
+		}
+	}
+}
+
+// EOF
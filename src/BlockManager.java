@@ -21,6 +21,24 @@ public class BlockManager
 	 */
 	private static BlockStack soStack = new BlockStack();
 
+	/**
+	 * Where blocks are acquired from and released to: the stack (LIFO, by default),
+	 * or with -Dblock.store=queue a BlockQueue (FIFO), starting with the same blocks
+	 */
+	private static BlockStore soStore = "queue".equals(System.getProperty("block.store")) ? new BlockQueue() : soStack;
+
+	/**
+	 * With -Dblock.trace=file, every acquire and release is recorded there for TraceReplayer
+	 */
+	private static BlockTrace.Recorder soTrace = null;
+
+	/**
+	 * With -Dblock.rate=N, AcquireBlock and ReleaseBlock threads get to the store
+	 * at most N times a second, in bursts of up to -Dblock.burst=M (default 1)
+	 */
+	private static RateLimitedSemaphore soThrottle = System.getProperty("block.rate") == null ? null :
+			new RateLimitedSemaphore(Double.parseDouble(System.getProperty("block.rate")), Integer.getInteger("block.burst", 1));
+
 	/**
 	 * Number of threads dumping stack
 	 */
@@ -32,9 +50,15 @@ public class BlockManager
 	private static int siThreadSteps = 5;
 
 	/**
-	 * For atomicity
+	 * For atomicity: grants access to the stack (and to nothing else) to the
+	 * phases of all threads, according to what each of them declares.
+	 */
+	private static ResourceScheduler soScheduler = new ResourceScheduler();
+
+	/**
+	 * Name under which the stack is declared to the scheduler
 	 */
-	private static Semaphore mutex = new Semaphore(1);
+	private static final String STACK = "stack";
 
 	/**
 	 * For phase 1, we need to know how many threads will be created.
@@ -57,36 +81,78 @@ public class BlockManager
 	 */
 
 	/**
-	 * Semaphore s1 is necessary to make sure that all threads have finished executing their phase I
-	 * before phase II starts executing for any threads.
-	 * To ensure that, we initialize s1 to the negative value of the total number of threads, incremented by 1.
-	 * Thus, all threads will subsequently be forced to wait until the value of s1 becomes positive,
-	 * which will only happen when all threads have finished executing Phase 1.
-	 * In that way, as soon as the last thread (10th one here) has finished executing Phase 1,
-	 * the value of s1 will be 1, allowing any thread to enter/start executing phase 2.
+	 * The phases every thread goes through, and how much parallelism each of them tolerates:
 	 *
-	 * NOTE: While initializing a semaphore to a negative value is not standard/desirable
-	 * in the classical definition of semaphores, it is sometimes the most practical way
-	 * to solve a synchronization problem. Here, we avoid the overhead of creating/deallocating/handling
-	 * one semaphore per thread by instead only using one for all threads. Solution looks more elegant that way.
+	 * - PHASE I does not touch the stack, so it declares nothing and all threads run it at once.
+	 * - Stack access: AcquireBlock and ReleaseBlock declare they write the stack and run alone,
+	 *   CharStackProbers only read it and may run together.
+	 * - PHASE II only starts once all threads are done with everything before it
+	 *   (this used to be s1, initialized to -nbrTotalThreads + 1), and then runs
+	 *   in TID order (this used to be s2 combined with turnTestAndSet()).
 	 */
-	private static Semaphore s1 = new Semaphore(-nbrTotalThreads + 1);
+	private static PhasePipeline soPipeline = new PhasePipeline(nbrTotalThreads)
+			.phase1(soScheduler, ResourceScheduler.Claim.none())
+			.onAllCompleted(new Runnable()
+			{
+				public void run()
+				{
+					System.out.println("READY FOR PHASE 2 => All " + nbrTotalThreads +
+							" threads have finished executing Phase 1 successfully!!!");
+				}
+			})
+			.concurrent("throttle", new PhasePipeline.Body()
+			{
+				// A phase of its own, so that waiting for a token does not hold the stack
+				public void run(BaseThread poThread)
+				{
+					if (soThrottle != null && !(poThread instanceof CharStackProber))
+						soThrottle.P();
+				}
+			})
+			.declared("stack access", soScheduler, new PhasePipeline.ClaimedBody()
+			{
+				public ResourceScheduler.Claim claim(BaseThread poThread)
+				{
+					return poThread instanceof CharStackProber ?
+							ResourceScheduler.Claim.reading(STACK) :
+							ResourceScheduler.Claim.writing(STACK);
+				}
 
-	/**
-	 * s2 is for use in conjunction with Thread.turnTestAndSet() for phase II proceed
-	 * in the thread creation order
-	 */
-	private static Semaphore s2 = new Semaphore(1);
+				public void run(BaseThread poThread)
+				{
+					((StackAccessor)poThread).accessStack();
+				}
+			})
+			.barrier()
+			.phase2(PhasePipeline.Mode.TURN_ORDERED);
 
 
 	// The main()
 	public static void main(String[] argv)
 	{
+		// e.g. -Dstall.threshold.ms=2000 reports threads stuck for 2 seconds
+		long lStallThreshold = Long.getLong("stall.threshold.ms", 0L);
+		if (lStallThreshold > 0)
+			StallWatchdog.start(lStallThreshold);
+
 		try {
 			// Some initial stats...
 			System.out.println("Main thread starts executing.");
-			System.out.println("Initial value of top = " + soStack.getITop() + ".");
-			System.out.println("Initial value of stack top = " + soStack.pick() + ".");
+			if (soStore != soStack)
+				System.out.println("Blocks are handed out in FIFO order by a BlockQueue.");
+			if (soThrottle != null)
+				System.out.println("Acquires and releases are throttled to " + soThrottle.getPermitsPerSecond() +
+						" per second, in bursts of up to " + soThrottle.getBurst() + ".");
+			System.out.println("Initial value of top = " + soStore.getITop() + ".");
+			System.out.println("Initial value of stack top = " + soStore.pick() + ".");
+
+			String strTrace = System.getProperty("block.trace");
+			if (strTrace != null)
+			{
+				soTrace = new BlockTrace.Recorder(java.nio.file.Paths.get(strTrace), soStore);
+				System.out.println("Recording a trace of all acquires and releases to " + strTrace + ".");
+			}
+
 			System.out.println("Main thread will now fork several threads.");
 
 			/*
@@ -145,10 +211,17 @@ public class BlockManager
 
 			// Some final stats after all the child threads terminated...
 			System.out.println("System terminates normally.");
-			System.out.println("Final value of top = " + soStack.getITop() + ".");
-			System.out.println("Final value of stack top = " + soStack.pick() + ".");
-			System.out.println("Final value of stack top-1 = " + soStack.getAt(soStack.getITop() - 1) + ".");
-			System.out.println("Stack access count = " + soStack.getAccessCounter());
+			if (soTrace != null)
+			{
+				soTrace.close(soStore);
+				System.out.println("Trace of " + soTrace.getCount() + " operations written.");
+			}
+			System.out.println("Final value of top = " + soStore.getITop() + ".");
+			System.out.println("Final value of stack top = " + soStore.pick() + ".");
+			System.out.println("Final value of stack top-1 = " + soStore.getAt(soStore.getITop() - 1) + ".");
+			if (soStore == soStack)
+				System.out.println("Stack access count = " + soStack.getAccessCounter());
+			System.out.println("Scheduler: " + soScheduler.report());
 
 			System.exit(0);
 		}
@@ -178,10 +251,20 @@ public class BlockManager
 	} // main()
 
 
+	/**
+	 * What each thread does in the "stack access" phase of the pipeline.
+	 * Always called with the access to the stack the thread has declared.
+	 */
+	interface StackAccessor
+	{
+		void accessStack();
+	}
+
+
 	/**
 	 * Inner AcquireBlock thread class.
 	 */
-	static class AcquireBlock extends BaseThread
+	static class AcquireBlock extends BaseThread implements StackAccessor
 	{
 		/**
 		 * A copy of a block returned by pop().
@@ -193,60 +276,62 @@ public class BlockManager
 		{
 			System.out.println("AcquireBlock thread [TID=" + this.iTID + "] starts executing.");
 
+			runPipeline(this);
 
-			// When executing Phase 1, only one thread should be operational at a time,
-			// thus we need to acquire the mutex.
-			// Phase 1 should act as an atomic operation and thus we have to guarantee mutual exclusivity.
-			// This is because we execute operations on the stack, which is a critical section.
-			// Furthermore, a thread should not be able to execute Phase 1 while another execute Phase 2 and vice versa.
-			// This is because both phases access the same critical section (the stack).
-			mutex.P();
-			phase1();
-
-			// s1 is initialized to -nbrTotalThreads + 1, (which in this specific case is -9). Thus, after a thread
-			// completes Phase 1, we increment that value. It will stay negative, preventing any thread to enter
-			// Phase 2 right until the moment the very last remaining thread (in this case thread 10th) finishes
-			// Phase 1 and arrives to the following line, when the value of s1 will become 1.
-			s1.V();
-
-			// Once the very last thread (in our case the 10th one) finishes executing Phase 1, it should unlock the
-			// semaphore s1. The following conditional checks for that and notifies the user of such accomplishment.
-			if (!s1.isLocked())
-			{
-				System.out.println("READY FOR PHASE 2 => All " + nbrTotalThreads +
-						" threads have finished executing Phase 1 successfully!!!");
-			}
-			mutex.V();
-
-			// The following try catch block contains operations that access and modify the stack, which is a shared
-			// resource and more importantly a critical section that needs to be protected. Thus, we use the mutex
-			// to guarantee mutual exclusivity.
-			// Furthermore, we cannot isolate specific statements that modifies/accesses the stack for better
-			// performance, since we have to make sure the mutex is successfully acquired and released.
-			mutex.P();
+			System.out.println("AcquireBlock thread [TID=" + this.iTID + "] terminates.");
+		}
+
+		public void accessStack()
+		{
 			try
 			{
 				System.out.println("AcquireBlock thread [TID=" + this.iTID + "] requests Ms block.");
 
-				this.cCopy = soStack.pop();
+				// The pop and what it left behind, as one consistent view
+				final int[] aiTop = new int[1];
+				final char[] acTop = new char[1];
+
+				if (soStore == soStack)
+				{
+					this.cCopy = BlockTransaction.atomically(new BlockTransaction.Body<Character>()
+					{
+						public Character run(BlockTransaction poTx) throws Exception
+						{
+							char cBlock = poTx.pop(soStack);
+							aiTop[0] = poTx.getITop(soStack);
+							acTop[0] = poTx.pick(soStack);
+							return cBlock;
+						}
+					});
+				}
+				else
+				{
+					// BlockTransaction only handles BlockStacks.
+					this.cCopy = soStore.pop();
+					aiTop[0] = soStore.getITop();
+					acTop[0] = soStore.pick();
+				}
+
+				if (soTrace != null)
+					soTrace.acquired(this.iTID, this.cCopy);
 
 				System.out.println
 						(
 								"AcquireBlock thread [TID=" + this.iTID + "] has obtained Ms block " + this.cCopy +
-										" from position " + (soStack.getITop() + 1) + "."
+										" from position " + (aiTop[0] + 1) + "."
 						);
 
 
 				System.out.println
 						(
 								"Acq[TID=" + this.iTID + "]: Current value of top = " +
-										soStack.getITop() + "."
+										aiTop[0] + "."
 						);
 
 				System.out.println
 						(
 								"Acq[TID=" + this.iTID + "]: Current value of stack top = " +
-										soStack.pick() + "."
+										acTop[0] + "."
 						);
 			}
 			catch(EmptyStackException e)
@@ -259,34 +344,6 @@ public class BlockManager
 				reportException(e);
 				System.exit(1);
 			}
-			finally {
-				// In all cases, even if some exceptions occur, we make sure to release the mutex we acquired.
-				mutex.V();
-			}
-
-			// The following line forces all threads to wait until every single thread has finished executing Phase 1
-			// before starting to execute Phase 2 (assuming s1 has been initialized to -totalNbrThreads + 1).
-			// Phase 2 will only be able to be executed once the value of s1 becomes strictly positive.
-			// Once that happens, all threads should be able to start executing Phase 2.
-			s1.P();
-			s1.V();
-
-			// Now that we know for sure that all threads have executed Phase 1, we need to make sure the threads
-			// execute Phase 2 in the order of their TID (ascending order).
-			// To do that, they repeatedly check whether or not it is their turn to execute Phase 2.
-			// When their TID corresponds to the next thread to execute, they acquire the semaphore s2, execute Phase 2
-			// and release s2 once they are done executing Phase 2, letting other threads the chance to execute their
-			// respective Phase 2.
-			while (!this.turnTestAndSet())
-			{
-				System.out.println("AcquireBlock thread [TID=" + this.iTID + "] tried to acquire semaphore " +
-						"to start executing Phase 2 but it is not its turn yet.");
-			}
-			s2.P();
-			phase2();
-			s2.V();
-
-			System.out.println("AcquireBlock thread [TID=" + this.iTID + "] terminates.");
 		}
 	} // class AcquireBlock
 
@@ -294,7 +351,7 @@ public class BlockManager
 	/**
 	 * Inner class ReleaseBlock.
 	 */
-	static class ReleaseBlock extends BaseThread
+	static class ReleaseBlock extends BaseThread implements StackAccessor
 	{
 		/**
 		 * Block to be returned. Default is 'a' if the stack is empty.
@@ -305,61 +362,40 @@ public class BlockManager
 		{
 			System.out.println("ReleaseBlock thread [TID=" + this.iTID + "] starts executing.");
 
+			runPipeline(this);
 
-			// When executing Phase 1, only one thread should be operational at a time,
-			// thus we need to acquire the mutex.
-			// Phase 1 should act as an atomic operation and thus we have to guarantee mutual exclusivity.
-			// This is because we execute operations on the stack, which is a critical section.
-			// Furthermore, a thread should not be able to execute Phase 1 while another execute Phase 2 and vice versa.
-			// This is because both phases access the same critical section (the stack).
-			mutex.P();
-			phase1();
-
-			// s1 is initialized to -nbrTotalThreads + 1, (which in this specific case is -9). Thus, after a thread
-			// completes Phase 1, we increment that value. It will stay negative, preventing any thread to enter
-			// Phase 2 right until the moment the very last remaining thread (in this case thread 10th) finishes
-			// Phase 1 and arrives to the following line, when the value of s1 will become 1.
-			s1.V();
-
-			// Once the very last thread (in our case the 10th one) finishes executing Phase 1, it should unlock the
-			// semaphore s1. The following conditional checks for that and notifies the user of such accomplishment.
-			if (!s1.isLocked())
-			{
-				System.out.println("READY FOR PHASE 2 => All " + nbrTotalThreads +
-						" threads have finished executing Phase 1 successfully!!!");
-			}
-			mutex.V();
-
-			// The following try catch block contains operations that access and modify the stack, which is a shared
-			// resource and more importantly a critical section that needs to be protected. Thus, we use the mutex
-			// to guarantee mutual exclusivity.
-			// Furthermore, we cannot isolate specific statements that modifies/accesses the stack for better
-			// performance, since we have to make sure the mutex is successfully acquired and released.
-			mutex.P();
+			System.out.println("ReleaseBlock thread [TID=" + this.iTID + "] terminates.");
+		}
+
+		public void accessStack()
+		{
 			try
 			{
-				if(soStack.isEmpty() == false)
-					this.cBlock = (char)(soStack.pick() + 1);
+				if(soStore.isEmpty() == false)
+					this.cBlock = (char)(soStore.pick() + 1);
 
 
 				System.out.println
 						(
 								"ReleaseBlock thread [TID=" + this.iTID + "] returns Ms block " + this.cBlock +
-										" to position " + (soStack.getITop() + 1) + "."
+										" to position " + (soStore.getITop() + 1) + "."
 						);
 
-				soStack.push(this.cBlock);
+				soStore.push(this.cBlock);
+
+				if (soTrace != null)
+					soTrace.released(this.iTID, this.cBlock);
 
 				System.out.println
 						(
 								"Rel[TID=" + this.iTID + "]: Current value of top = " +
-										soStack.getITop() + "."
+										soStore.getITop() + "."
 						);
 
 				System.out.println
 						(
 								"Rel[TID=" + this.iTID + "]: Current value of stack top = " +
-										soStack.pick() + "."
+										soStore.pick() + "."
 						);
 			}
 			catch(FullStackException e)
@@ -377,135 +413,123 @@ public class BlockManager
 				reportException(e);
 				System.exit(1);
 			}
-			finally {
-				// In all cases, even if some exceptions occur, we make sure to release the mutex we acquired.
-				mutex.V();
-			}
-
-			// The following line forces all threads to wait until every single thread has finished executing Phase 1
-			// before starting to execute Phase 2 (assuming s1 has been initialized to -totalNbrThreads + 1).
-			// Phase 2 will only be able to be executed once the value of s1 becomes strictly positive.
-			// Once that happens, all threads should be able to start executing Phase 2.
-			s1.P();
-			s1.V();
-
-			// Now that we know for sure that all threads have executed Phase 1, we need to make sure the threads
-			// execute Phase 2 in the order of their TID (ascending order).
-			// To do that, they repeatedly check whether or not it is their turn to execute Phase 2.
-			// When their TID corresponds to the next thread to execute, they acquire the semaphore s2, execute Phase 2
-			// and release s2 once they are done executing Phase 2, letting other threads the chance to execute their
-			// respective Phase 2.
-			while (!this.turnTestAndSet())
-			{
-				System.out.println("ReleaseBlock thread [TID=" + this.iTID + "] tried to acquire semaphore " +
-						"to start executing Phase 2 but it is not its turn yet.");
-			}
-			s2.P();
-			phase2();
-			s2.V();
-
-			System.out.println("ReleaseBlock thread [TID=" + this.iTID + "] terminates.");
 		}
 	} // class ReleaseBlock
 
 
 	/**
 	 * Inner class CharStackProber to dump stack contents.
+	 * Rather than rescanning the stack at every step, it follows the stack's
+	 * change stream and only prints when something has changed since its last look.
+	 * A BlockQueue has no change stream: it is rendered at every step instead,
+	 * and printed when the rendering differs from the last one printed.
 	 */
-	static class CharStackProber extends BaseThread
+	static class CharStackProber extends BaseThread implements StackAccessor
 	{
+		/**
+		 * Local copy of the stack, kept up to date from its change stream.
+		 * Subscribed at construction time, i.e. before any thread touches the stack.
+		 */
+		private final StackMirror oMirror = new StackMirror(soStack.getISize());
+
+		/**
+		 * Last rendering printed, when there is no mirror
+		 */
+		private String strLast = null;
+
+		public CharStackProber()
+		{
+			if (soStore == soStack)
+				soStack.changes().subscribe(this.oMirror);
+		}
+
 		public void run()
 		{
+			runPipeline(this);
+		}
 
-			// When executing Phase 1, only one thread should be operational at a time,
-			// thus we need to acquire the mutex.
-			// Phase 1 should act as an atomic operation and thus we have to guarantee mutual exclusivity.
-			// This is because we execute operations on the stack, which is a critical section.
-			// Furthermore, a thread should not be able to execute Phase 1 while another execute Phase 2 and vice versa.
-			// This is because both phases access the same critical section (the stack).
-			mutex.P();
-			phase1();
-
-			// s1 is initialized to -nbrTotalThreads + 1, (which in this specific case is -9). Thus, after a thread
-			// completes Phase 1, we increment that value. It will stay negative, preventing any thread to enter
-			// Phase 2 right until the moment the very last remaining thread (in this case thread 10th) finishes
-			// Phase 1 and arrives to the following line, when the value of s1 will become 1.
-			s1.V();
-			// Once the very last thread (in our case the 10th one) finishes executing Phase 1, it should unlock the
-			// semaphore s1. The following conditional checks for that and notifies the user of such accomplishment.
-			if (!s1.isLocked())
-			{
-				System.out.println("READY FOR PHASE 2 => All " + nbrTotalThreads +
-						" threads have finished executing Phase 1 successfully!!!");
-			}
-			mutex.V();
-
-			// The following try catch block contains operations that access and modify the stack, which is a shared
-			// resource and more importantly a critical section that needs to be protected. Thus, we use the mutex
-			// to guarantee mutual exclusivity.
-			// Furthermore, we cannot isolate specific statements that modifies/accesses the stack for better
-			// performance, since we have to make sure the mutex is successfully acquired and released.
-			mutex.P();
-			try
+		public void accessStack()
+		{
+			int iUnchanged = 0;
+
+			for(int i = 0; i < siThreadSteps; i++)
 			{
-				for(int i = 0; i < siThreadSteps; i++)
+				if (soStore != soStack)
 				{
-					System.out.print("Stack Prober [TID=" + this.iTID + "]: Stack state: ");
+					String strState = render(soStore);
 
-					// [s] - means ordinay slot of a stack
-					// (s) - current top of the stack
-					for(int s = 0; s < soStack.getISize(); s++)
-						System.out.print
-								(
-										(s == BlockManager.soStack.getITop() ? "(" : "[") +
-												BlockManager.soStack.getAt(s) +
-												(s == BlockManager.soStack.getITop() ? ")" : "]")
-								);
+					if (strState.equals(this.strLast))
+						iUnchanged++;
+					else
+						System.out.println("Stack Prober [TID=" + this.iTID + "]: Queue state: " + strState + ".");
 
-					System.out.println(".");
+					this.strLast = strState;
+					continue;
+				}
 
+				if (!this.oMirror.hasChanged())
+				{
+					iUnchanged++;
+					continue;
 				}
+
+				// [s] - means ordinay slot of a stack
+				// (s) - current top of the stack
+				System.out.println
+						(
+								"Stack Prober [TID=" + this.iTID + "]: Stack state: " + this.oMirror.render() +
+										" (change #" + this.oMirror.getSequence() + ")."
+						);
 			}
-			catch(OutOfBoundsStackIndexException e)
-			{
-				System.err.println("Caught OutOfBoundsStackIndexException: " + e.getMessage());
-				System.exit(1);
-			}
-			catch(Exception e)
-			{
-				reportException(e);
-				System.exit(1);
-			}
-			finally {
-				// In all cases, even if some exceptions occur, we make sure to release the mutex we acquired.
-				mutex.V();
-			}
 
-			// The following line forces all threads to wait until every single thread has finished executing Phase 1
-			// before starting to execute Phase 2 (assuming s1 has been initialized to -totalNbrThreads + 1).
-			// Phase 2 will only be able to be executed once the value of s1 becomes strictly positive.
-			// Once that happens, all threads should be able to start executing Phase 2.
-			s1.P();
-			s1.V();
-
-			// Now that we know for sure that all threads have executed Phase 1, we need to make sure the threads
-			// execute Phase 2 in the order of their TID (ascending order).
-			// To do that, they repeatedly check whether or not it is their turn to execute Phase 2.
-			// When their TID corresponds to the next thread to execute, they acquire the semaphore s2, execute Phase 2
-			// and release s2 once they are done executing Phase 2, letting other threads the chance to execute their
-			// respective Phase 2.
-			while (!this.turnTestAndSet())
+			if (iUnchanged > 0)
+				System.out.println("Stack Prober [TID=" + this.iTID + "]: no change in " + iUnchanged + " probe(s).");
+		}
+
+		/**
+		 * Renders a store like StackMirror does: [s] for a slot, (s) for the next block out.
+		 */
+		private static String render(final BlockStore poStore)
+		{
+			StringBuilder oOut = new StringBuilder();
+			int iTop = poStore.getITop();
+
+			for (int s = 0; s < poStore.getISize(); s++)
 			{
-				System.out.println("Stack Prober [TID=" + this.iTID + "] tried to acquire semaphore " +
-						"to start executing Phase 2 but it is not its turn yet.");
+				try
+				{
+					char cBlock = s <= iTop ? poStore.getAt(s) : '*';
+					oOut.append(s == iTop ? "(" : "[").append(cBlock).append(s == iTop ? ")" : "]");
+				}
+				catch(OutOfBoundsStackIndexException e)
+				{
+					oOut.append("[?]");
+				}
 			}
-			s2.P();
-			phase2();
-			s2.V();
+
+			return oOut.toString();
 		}
 	} // class CharStackProber
 
 
+	/**
+	 * Runs all the phases on behalf of a thread.
+	 * @param poThread AcquireBlock, ReleaseBlock or CharStackProber thread
+	 */
+	private static void runPipeline(BaseThread poThread)
+	{
+		try
+		{
+			soPipeline.run(poThread);
+		}
+		catch(Exception e)
+		{
+			reportException(e);
+			System.exit(1);
+		}
+	}
+
+
 	/**
 	 * Outputs exception information to STDERR
 	 * @param poException Exception object to dump to STDERR
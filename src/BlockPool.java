@@ -0,0 +1,778 @@
+import common.Semaphore;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class BlockPool
+ * Pool of reusable objects handed out the AcquireBlock/ReleaseBlock way,
+ * except that acquire() returns a Lease saying who holds what, and
+ * the object goes back to the pool when its lease is released.
+ *
+ * The objects the pool owns sit on a shared depot stack, guarded by a mutex,
+ * and up to capacity of them are created on demand. In front of the depot,
+ * every thread has a magazine: a small stack of its own, which it acquires
+ * from and releases to under the magazine's own lock. Nobody else takes that
+ * lock unless the pool runs dry, so most acquire/release pairs never touch
+ * shared state. A thread only visits the depot when its magazine runs empty
+ * (to take half a magazine) or full (to give half back).
+ *
+ * When the depot is empty and all the capacity has been created, magazines
+ * left behind by terminated threads are emptied back into the depot, and
+ * failing that, half the objects of another thread's magazine are taken.
+ * So acquire() only fails when every object is leased (or, for an instant,
+ * on its way between the depot and a magazine).
+ *
+ * Leak detection is optional and sampled: one lease in N is watched by a Cleaner,
+ * which reports it, with where it was acquired, if it becomes unreachable
+ * without having been released. The pool then stops counting the lost object,
+ * so a replacement can be created. Unsampled leases cost nothing extra.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class BlockPool<T>
+{
+	/**
+	 * Default number of objects a thread keeps to itself
+	 */
+	public static final int DEFAULT_MAGAZINE_SIZE = 16;
+
+	/**
+	 * Watches sampled leases for every pool
+	 */
+	private static final Cleaner soCleaner = Cleaner.create();
+
+	/**
+	 * Makes the pooled objects.
+	 */
+	public interface Factory<T>
+	{
+		T create();
+	}
+
+	private final Factory<T> oFactory;
+	private final int iCapacity;
+	private final int iMagazineSize;
+
+	/**
+	 * Objects not in any magazine and not leased; guarded by oDepotLock,
+	 * like every field below up to oMagazines
+	 */
+	private final ObjectBlockStack<T> oDepot;
+	private final Semaphore oDepotLock = new Semaphore(1);
+
+	/**
+	 * Objects created and not known lost
+	 */
+	private int iCreated = 0;
+
+	/**
+	 * Number of times a thread had to go to the depot
+	 */
+	private long lDepotVisits = 0;
+
+	private int iLeaksDetected = 0;
+
+	/**
+	 * Every live thread's magazine, to recover those of dead threads and take
+	 * from those of others when the pool runs dry
+	 */
+	private final List<Magazine<T>> oMagazines = new ArrayList<Magazine<T>>();
+
+	private final ThreadLocal<Magazine<T>> oMagazine;
+
+	/**
+	 * One lease in iLeakSampling is watched for leaks; 0 for none
+	 */
+	private volatile int iLeakSampling = 0;
+
+	/**
+	 * Pool with default magazines.
+	 * @param piCapacity the most objects that may exist at once
+	 */
+	public BlockPool(final Factory<T> poFactory, final int piCapacity)
+			throws InvalidStackSizeException
+	{
+		this(poFactory, piCapacity, DEFAULT_MAGAZINE_SIZE);
+	}
+
+	/**
+	 * @param piCapacity the most objects that may exist at once
+	 * @param piMagazineSize objects a thread may keep to itself; 0 sends every operation to the depot
+	 */
+	public BlockPool(final Factory<T> poFactory, final int piCapacity, final int piMagazineSize)
+			throws InvalidStackSizeException
+	{
+		if (piMagazineSize < 0 || piMagazineSize == 1)
+			throw new InvalidStackSizeException();
+
+		this.oFactory = poFactory;
+		this.iCapacity = piCapacity;
+		this.iMagazineSize = piMagazineSize;
+		this.oDepot = new ObjectBlockStack<T>(piCapacity);
+
+		this.oMagazine = new ThreadLocal<Magazine<T>>()
+		{
+			protected Magazine<T> initialValue()
+			{
+				return openMagazine();
+			}
+		};
+	}
+
+	/**
+	 * Leases an object, creating it if the pool has none spare and is under capacity.
+	 * @throws EmptyStackException if all the capacity is leased
+	 */
+	public Lease<T> acquire()
+			throws EmptyStackException
+	{
+		T oResource;
+
+		if (this.iMagazineSize == 0)
+		{
+			oResource = takeFromDepot();
+		}
+		else
+		{
+			Magazine<T> oMagazine = this.oMagazine.get();
+
+			oMagazine.oLock.P();
+			try
+			{
+				oResource = oMagazine.oStack.isEmpty() ? null : oMagazine.oStack.pop();
+			}
+			finally
+			{
+				oMagazine.oLock.V();
+			}
+
+			if (oResource == null)
+				oResource = refill(oMagazine);
+		}
+
+		Lease<T> oLease = new Lease<T>(this, oResource);
+
+		int iSampling = this.iLeakSampling;
+		if (iSampling > 0 && ThreadLocalRandom.current().nextInt(iSampling) == 0)
+			oLease.watch();
+
+		return oLease;
+	}
+
+	/**
+	 * Turns sampled leak detection on or off.
+	 * @param piOneIn watch one lease in that many (1 watches them all); 0 turns detection off
+	 */
+	public void setLeakSampling(final int piOneIn)
+	{
+		if (piOneIn < 0)
+			throw new IllegalArgumentException("Negative sampling rate: " + piOneIn);
+
+		this.iLeakSampling = piOneIn;
+	}
+
+	public int getCapacity()
+	{
+		return this.iCapacity;
+	}
+
+	/**
+	 * @return number of pooled objects currently in existence
+	 */
+	public int getCreated()
+	{
+		this.oDepotLock.P();
+		try
+		{
+			return this.iCreated;
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+	}
+
+	/**
+	 * @return how many acquires and releases had to go to the shared depot
+	 */
+	public long getDepotVisits()
+	{
+		this.oDepotLock.P();
+		try
+		{
+			return this.lDepotVisits;
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+	}
+
+	/**
+	 * @return number of sampled leases found unreachable before being released
+	 */
+	public int getLeaksDetected()
+	{
+		this.oDepotLock.P();
+		try
+		{
+			return this.iLeaksDetected;
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+	}
+
+	/**
+	 * Puts a released object back: into the thread's magazine if it can.
+	 */
+	private void giveBack(final T poResource)
+	{
+		try
+		{
+			if (this.iMagazineSize == 0)
+			{
+				this.oDepotLock.P();
+				try
+				{
+					this.lDepotVisits++;
+					this.oDepot.push(poResource);
+				}
+				finally
+				{
+					this.oDepotLock.V();
+				}
+				return;
+			}
+
+			Magazine<T> oMagazine = this.oMagazine.get();
+
+			oMagazine.oLock.P();
+			try
+			{
+				if (oMagazine.oStack.isFull())
+					spill(oMagazine.oStack);
+
+				oMagazine.oStack.push(poResource);
+			}
+			finally
+			{
+				oMagazine.oLock.V();
+			}
+		}
+		catch(FullStackException e)
+		{
+			// Cannot happen: there are never more objects than the depot has slots.
+			throw new IllegalStateException("More objects released than the pool ever created", e);
+		}
+	}
+
+	/**
+	 * Gets objects for an empty magazine: half a magazine from the depot, else
+	 * a new object, else half of another thread's magazine. Called without
+	 * any lock: a magazine lock is never taken while holding another one.
+	 * @return one object to lease; the others found go into the magazine
+	 * @throws EmptyStackException if there is nothing to take and no capacity left
+	 */
+	private T refill(final Magazine<T> poMagazine)
+			throws EmptyStackException
+	{
+		List<T> oTaken = new ArrayList<T>(this.iMagazineSize / 2);
+		List<Magazine<T>> oOthers = null;
+
+		this.oDepotLock.P();
+		try
+		{
+			this.lDepotVisits++;
+
+			if (this.oDepot.isEmpty() && this.iCreated == this.iCapacity)
+				recoverAbandoned();
+
+			for (int i = this.iMagazineSize / 2; i > 0 && !this.oDepot.isEmpty(); i--)
+				oTaken.add(this.oDepot.pop());
+
+			if (oTaken.isEmpty())
+			{
+				if (this.iCreated < this.iCapacity)
+					this.iCreated++;
+				else
+					oOthers = new ArrayList<Magazine<T>>(this.oMagazines);
+			}
+		}
+		catch(FullStackException e)
+		{
+			throw new IllegalStateException("More objects released than the pool ever created", e);
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+
+		// Slot reserved above; the factory runs outside the lock.
+		if (oTaken.isEmpty() && oOthers == null)
+			return create();
+
+		if (oOthers != null)
+		{
+			for (Magazine<T> oOther : oOthers)
+			{
+				if (oOther != poMagazine && steal(oOther, oTaken))
+					break;
+			}
+
+			if (oTaken.isEmpty())
+				throw new EmptyStackException();
+		}
+
+		T oResource = oTaken.remove(oTaken.size() - 1);
+
+		if (!oTaken.isEmpty())
+		{
+			poMagazine.oLock.P();
+			try
+			{
+				for (T oSpare : oTaken)
+					poMagazine.oStack.push(oSpare);
+			}
+			catch(FullStackException e)
+			{
+				throw new IllegalStateException("Magazine overflow", e);
+			}
+			finally
+			{
+				poMagazine.oLock.V();
+			}
+		}
+
+		return oResource;
+	}
+
+	/**
+	 * Takes half (rounded up) of another thread's magazine.
+	 * @return whether anything was taken
+	 */
+	private boolean steal(final Magazine<T> poVictim, final List<T> poTaken)
+	{
+		poVictim.oLock.P();
+		try
+		{
+			for (int i = (poVictim.oStack.getITop() + 2) / 2; i > 0; i--)
+				poTaken.add(poVictim.oStack.pop());
+		}
+		catch(EmptyStackException e)
+		{
+			throw new IllegalStateException("Magazine underflow", e);
+		}
+		finally
+		{
+			poVictim.oLock.V();
+		}
+
+		return !poTaken.isEmpty();
+	}
+
+	/**
+	 * Moves half of the (full) magazine to the depot. Must hold the magazine's lock.
+	 */
+	private void spill(final ObjectBlockStack<T> poMagazine)
+	{
+		this.oDepotLock.P();
+		try
+		{
+			this.lDepotVisits++;
+
+			for (int i = this.iMagazineSize / 2; i > 0; i--)
+				this.oDepot.push(poMagazine.pop());
+		}
+		catch(EmptyStackException e)
+		{
+			throw new IllegalStateException("Magazine underflow", e);
+		}
+		catch(FullStackException e)
+		{
+			throw new IllegalStateException("More objects released than the pool ever created", e);
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+	}
+
+	/**
+	 * Depot-only acquire, for pools without magazines.
+	 */
+	private T takeFromDepot()
+			throws EmptyStackException
+	{
+		this.oDepotLock.P();
+		try
+		{
+			this.lDepotVisits++;
+
+			if (!this.oDepot.isEmpty())
+				return this.oDepot.pop();
+
+			if (this.iCreated == this.iCapacity)
+				throw new EmptyStackException();
+
+			this.iCreated++;
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+
+		return create();
+	}
+
+	/**
+	 * Runs the factory for a slot already counted in iCreated, giving the slot back if it fails.
+	 */
+	private T create()
+	{
+		boolean bCreated = false;
+
+		try
+		{
+			T oResource = this.oFactory.create();
+			bCreated = true;
+			return oResource;
+		}
+		finally
+		{
+			if (!bCreated)
+				forget(false);
+		}
+	}
+
+	/**
+	 * Stops counting an object that will never come back.
+	 * @param pbLeaked whether it is because its lease leaked
+	 */
+	private void forget(final boolean pbLeaked)
+	{
+		this.oDepotLock.P();
+		try
+		{
+			this.iCreated--;
+
+			if (pbLeaked)
+				this.iLeaksDetected++;
+		}
+		finally
+		{
+			this.oDepotLock.V();
+		}
+	}
+
+	/**
+	 * Empties the magazines of terminated threads into the depot. Must hold oDepotLock.
+	 * Taking a magazine lock here is safe: only a thief can hold it, and thieves
+	 * hold nothing else.
+	 */
+	private void recoverAbandoned()
+			throws FullStackException
+	{
+		for (int i = this.oMagazines.size() - 1; i >= 0; i--)
+		{
+			Magazine<T> oAbandoned = this.oMagazines.get(i);
+
+			// A dead thread's last writes to its magazine happen-before isAlive() returning false.
+			if (oAbandoned.oOwner.isAlive())
+				continue;
+
+			oAbandoned.oLock.P();
+			try
+			{
+				while (!oAbandoned.oStack.isEmpty())
+					this.oDepot.push(oAbandoned.oStack.pop());
+			}
+			catch(EmptyStackException e)
+			{
+				// checked just above
+			}
+			finally
+			{
+				oAbandoned.oLock.V();
+			}
+
+			this.oMagazines.remove(i);
+		}
+	}
+
+	private Magazine<T> openMagazine()
+	{
+		try
+		{
+			Magazine<T> oNew = new Magazine<T>(Thread.currentThread(), new ObjectBlockStack<T>(this.iMagazineSize));
+
+			this.oDepotLock.P();
+			try
+			{
+				this.oMagazines.add(oNew);
+			}
+			finally
+			{
+				this.oDepotLock.V();
+			}
+
+			return oNew;
+		}
+		catch(InvalidStackSizeException e)
+		{
+			throw new IllegalStateException("Magazine size checked by the constructor", e);
+		}
+	}
+
+	/**
+	 * Class Magazine
+	 * A thread's own cache of spare objects.
+	 */
+	private static final class Magazine<T>
+	{
+		final Thread oOwner;
+		final ObjectBlockStack<T> oStack;
+
+		/**
+		 * Guards oStack; only contended when another thread steals from it
+		 */
+		final Semaphore oLock = new Semaphore(1);
+
+		Magazine(final Thread poOwner, final ObjectBlockStack<T> poStack)
+		{
+			this.oOwner = poOwner;
+			this.oStack = poStack;
+		}
+	}
+
+	/**
+	 * Class Lease
+	 * The right to use one pooled object until release() (or close(), for
+	 * try-with-resources). A lease may be released by another thread than
+	 * the one that acquired it, but only once.
+	 */
+	public static final class Lease<T> implements AutoCloseable
+	{
+		private final BlockPool<T> oPool;
+		private final T oResource;
+		private final AtomicBoolean oReleased = new AtomicBoolean(false);
+
+		/**
+		 * Set on sampled leases only
+		 */
+		private LeakWatch oWatch = null;
+		private Cleaner.Cleanable oCleanable = null;
+
+		private Lease(final BlockPool<T> poPool, final T poResource)
+		{
+			this.oPool = poPool;
+			this.oResource = poResource;
+		}
+
+		/**
+		 * @return the leased object
+		 * @throws IllegalStateException once the lease is released
+		 */
+		public T get()
+		{
+			if (this.oReleased.get())
+				throw new IllegalStateException("Lease already released");
+
+			return this.oResource;
+		}
+
+		/**
+		 * Gives the object back to the pool. Do not use it afterwards.
+		 * @throws IllegalStateException if already released
+		 */
+		public void release()
+		{
+			// Of two threads releasing at once, only one gives the object back.
+			if (!this.oReleased.compareAndSet(false, true))
+				throw new IllegalStateException("Lease already released");
+
+			if (this.oWatch != null)
+			{
+				this.oWatch.bReleased = true;
+				this.oCleanable.clean();
+			}
+
+			this.oPool.giveBack(this.oResource);
+		}
+
+		public void close()
+		{
+			release();
+		}
+
+		private void watch()
+		{
+			this.oWatch = new LeakWatch(this.oPool,
+					this.oResource.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this.oResource)));
+			this.oCleanable = soCleaner.register(this, this.oWatch);
+		}
+	}
+
+	/**
+	 * Class LeakWatch
+	 * Cleaner action of a sampled lease. Must not reference the lease itself.
+	 */
+	private static final class LeakWatch implements Runnable
+	{
+		private final BlockPool<?> oPool;
+		private final String strResource;
+		private final Throwable oAcquiredAt;
+		volatile boolean bReleased = false;
+
+		LeakWatch(final BlockPool<?> poPool, final String pstrResource)
+		{
+			this.oPool = poPool;
+			this.strResource = pstrResource;
+			this.oAcquiredAt = new Throwable("Leased by " + Thread.currentThread().getName() + " here");
+		}
+
+		public void run()
+		{
+			if (this.bReleased)
+				return;
+
+			this.oPool.forget(true);
+
+			System.err.println("BlockPool: lease of " + this.strResource + " was never released.");
+			this.oAcquiredAt.printStackTrace(System.err);
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		final int iThreads = argv.length > 0 ? Integer.parseInt(argv[0]) : 4;
+		final int iPairs = argv.length > 1 ? Integer.parseInt(argv[1]) : 1000000;
+
+		Factory<StringBuilder> oBuffers = new Factory<StringBuilder>()
+		{
+			public StringBuilder create()
+			{
+				return new StringBuilder(256);
+			}
+		};
+
+		try
+		{
+			// Same workload with and without magazines
+			for (int iMagazine : new int[] { 0, DEFAULT_MAGAZINE_SIZE })
+			{
+				final BlockPool<StringBuilder> oPool = new BlockPool<StringBuilder>(oBuffers, 4 * iThreads * Math.max(iMagazine, 1), iMagazine);
+				Thread[] aoWorkers = new Thread[iThreads];
+				long lStart = System.nanoTime();
+
+				for (int t = 0; t < iThreads; t++)
+				{
+					aoWorkers[t] = new Thread()
+					{
+						public void run()
+						{
+							try
+							{
+								for (int i = 0; i < iPairs; i++)
+								{
+									try (Lease<StringBuilder> oLease = oPool.acquire())
+									{
+										oLease.get().setLength(0);
+										oLease.get().append(i);
+									}
+								}
+							}
+							catch(EmptyStackException e)
+							{
+								System.err.println("Pool exhausted");
+							}
+						}
+					};
+					aoWorkers[t].start();
+				}
+
+				for (Thread oWorker : aoWorkers)
+					oWorker.join();
+
+				long lNanos = System.nanoTime() - lStart;
+
+				System.out.println(String.format("magazine %2d: %10.0f pairs/s, %d objects, %d depot visits for %d pairs",
+						iMagazine, iThreads * (double)iPairs / (lNanos / 1e9), oPool.getCreated(), oPool.getDepotVisits(), (long)iThreads * iPairs));
+			}
+
+			// Two threads sharing a pool of capacity N: all N objects idle in the
+			// magazine of a thread that is still alive must not stop the other one.
+			final BlockPool<StringBuilder> oShared = new BlockPool<StringBuilder>(oBuffers, 8);
+			final Semaphore oFilled = new Semaphore(0);
+			final Semaphore oDone = new Semaphore(0);
+
+			Thread oHoarder = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						List<Lease<StringBuilder>> oLeases = new ArrayList<Lease<StringBuilder>>();
+						for (int i = 0; i < oShared.getCapacity(); i++)
+							oLeases.add(oShared.acquire());
+						for (Lease<StringBuilder> oLease : oLeases)
+							oLease.release();
+					}
+					catch(EmptyStackException e)
+					{
+						System.err.println("Pool exhausted");
+					}
+
+					oFilled.V();
+					oDone.P();
+				}
+			};
+			oHoarder.start();
+			oFilled.P();
+
+			List<Lease<StringBuilder>> oTaken = new ArrayList<Lease<StringBuilder>>();
+			for (int i = 0; i < oShared.getCapacity(); i++)
+				oTaken.add(oShared.acquire());
+
+			System.out.println("Shared pool: " + oTaken.size() + " leased from another live thread's magazine, " +
+					oShared.getCreated() + " objects created.");
+
+			oDone.V();
+			oHoarder.join();
+
+			if (oShared.getCreated() != oShared.getCapacity())
+				throw new IllegalStateException("Created " + oShared.getCreated() + " objects for a capacity of " + oShared.getCapacity());
+
+			// Leak detection: lose a few leases on purpose
+			BlockPool<StringBuilder> oPool = new BlockPool<StringBuilder>(oBuffers, 8);
+			oPool.setLeakSampling(1);
+
+			for (int i = 0; i < 3; i++)
+				oPool.acquire().get().append("leaked #").append(i);
+
+			for (int i = 0; i < 50 && oPool.getLeaksDetected() < 3; i++)
+			{
+				System.gc();
+				Thread.sleep(20);
+			}
+
+			System.out.println("Leaks detected: " + oPool.getLeaksDetected() + ", objects still counted: " + oPool.getCreated());
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,120 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class BlockProtocol
+ * Wire format shared by BlockServer and BlockClient. All integers are big endian.
+ *
+ * Request frames:
+ *
+ *     PUSH   [op:1][id:4][block:2]
+ *     POP    [op:1][id:4]
+ *     PICK   [op:1][id:4]
+ *     BATCH  [op:1][id:4][count:2] followed by count sub-requests [op:1] or [op:1][block:2]
+ *
+ * Response frames, in request order:
+ *
+ *     single [id:4][status:1][block:2]
+ *     BATCH  [id:4][status:1][count:2] followed by count results [status:1][block:2]
+ *
+ * A client may write any number of requests without waiting for their
+ * responses (pipelining); the server answers them in order, coalescing
+ * all the responses to what it read in one go into a single write.
+ * A batch is applied atomically: no other client's request runs in between,
+ * and if any of its operations fails, none of them takes effect. The stack
+ * is rolled back, the batch status is that of the failed operation, which
+ * reports why it failed, and every other operation reports ST_ABORTED.
+ *
+ * A batch of more than MAX_BATCH operations is a protocol error: the server
+ * closes the connection.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+final class BlockProtocol
+{
+	/*
+	 * Operation codes
+	 */
+	static final byte OP_PUSH  = 1;
+	static final byte OP_POP   = 2;
+	static final byte OP_PICK  = 3;
+	static final byte OP_BATCH = 4;
+
+	/*
+	 * Status codes
+	 */
+	static final byte ST_OK          = 0;
+	static final byte ST_EMPTY       = 1;
+	static final byte ST_FULL        = 2;
+	static final byte ST_BAD_REQUEST = 3;
+	static final byte ST_ABORTED     = 4;   // batch rolled back because another operation failed
+
+	/**
+	 * Largest number of sub-requests in one batch
+	 */
+	static final int MAX_BATCH = 1024;
+
+	/*
+	 * Frame sizes
+	 */
+	static final int REQUEST_HEADER_SIZE = 5;   // op + id
+	static final int RESPONSE_SIZE = 7;         // id + status + block
+	static final int BATCH_RESULT_SIZE = 3;     // status + block
+
+	private BlockProtocol()
+	{
+	}
+
+	/**
+	 * @return total size of the request frame starting at the buffer's position,
+	 * or -1 if not enough of it has arrived yet to tell
+	 * @throws ProtocolException on a batch of more than MAX_BATCH operations,
+	 * as soon as its header is in: such a frame might never fit the input buffer
+	 */
+	static int requestSize(final ByteBuffer poIn)
+			throws ProtocolException
+	{
+		int iAvailable = poIn.remaining();
+
+		if (iAvailable < 1)
+			return -1;
+
+		int iStart = poIn.position();
+
+		switch (poIn.get(iStart))
+		{
+			case OP_PUSH:
+				return REQUEST_HEADER_SIZE + 2;
+
+			case OP_BATCH:
+			{
+				if (iAvailable < REQUEST_HEADER_SIZE + 2)
+					return -1;
+
+				int iCount = poIn.getShort(iStart + REQUEST_HEADER_SIZE) & 0xFFFF;
+
+				if (iCount > MAX_BATCH)
+					throw new ProtocolException("Batch too large: " + iCount);
+
+				int iSize = REQUEST_HEADER_SIZE + 2;
+
+				// Sub-requests have different sizes: walk the ones already there.
+				for (int i = 0; i < iCount; i++)
+				{
+					if (iAvailable < iSize + 1)
+						return -1;
+
+					iSize += poIn.get(iStart + iSize) == OP_PUSH ? 3 : 1;
+				}
+
+				return iSize;
+			}
+
+			default:
+				return REQUEST_HEADER_SIZE;
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,299 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class BlockQueue
+ * FIFO counterpart of BlockStack: blocks come out in the order they were
+ * released, so they all get used in turn instead of the most recently
+ * returned ones over and over.
+ *
+ * It is a bounded multi-producer/multi-consumer ring (D. Vyukov's design),
+ * lock-free and safe to use from any number of threads without a mutex.
+ * Every slot carries a sequence number saying whose turn it is:
+ *
+ *     sequence == position          free, for the producer claiming position
+ *     sequence == position + 1      full, for the consumer claiming position
+ *
+ * where position counts pushes (producers) or pops (consumers) since the
+ * beginning. Producers only contend on the tail counter and consumers on the
+ * head counter, which live on different cache lines; a push and a pop only
+ * meet on a slot when the queue is (nearly) empty or full.
+ *
+ * pick(), getAt() and getITop() read a moving queue and are only exact
+ * while no push or pop runs, as in BlockManager's read-only probing phase.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class BlockQueue implements BlockStore
+{
+	/**
+	 * Counter slots in alCounters; 16 longs apart, i.e. on different cache lines
+	 */
+	private static final int HEAD = 7;
+	private static final int TAIL = 23;
+
+	private final int iSize;
+
+	/**
+	 * The blocks, published to other threads by the slot's sequence number
+	 */
+	private final char[] acSlots;
+	private final AtomicLongArray alSequences;
+
+	/**
+	 * Head (next position to pop) and tail (next position to push),
+	 * padded apart from each other and from everything else
+	 */
+	private final AtomicLongArray alCounters = new AtomicLongArray(31);
+
+	/**
+	 * Same size and initial blocks as a default BlockStack.
+	 * As with BlockStack, 'd' comes out first, so pick() tells the same at start.
+	 */
+	public BlockQueue()
+	{
+		this(BlockStack.DEFAULT_SIZE, "dcba");
+	}
+
+	/**
+	 * Empty queue with the given number of slots.
+	 * @throws InvalidStackSizeException
+	 */
+	public BlockQueue(final int piSize)
+			throws InvalidStackSizeException
+	{
+		this(checkSize(piSize), "");
+	}
+
+	/**
+	 * @param pstrBlocks initial blocks, first out first
+	 */
+	private BlockQueue(final int piSize, final String pstrBlocks)
+	{
+		this.iSize = piSize;
+		this.acSlots = new char[piSize];
+		this.alSequences = new AtomicLongArray(piSize);
+
+		for (int i = 0; i < piSize; i++)
+			this.alSequences.set(i, i);
+
+		for (int i = 0; i < pstrBlocks.length(); i++)
+			offer(pstrBlocks.charAt(i));
+	}
+
+	private static int checkSize(final int piSize)
+			throws InvalidStackSizeException
+	{
+		if (piSize < 1)
+			throw new InvalidStackSizeException();
+
+		return piSize;
+	}
+
+	/**
+	 * Appends a block at the tail.
+	 * @throws FullStackException if every slot is in use
+	 */
+	public void push(final char pcBlock)
+			throws FullStackException
+	{
+		if (!offer(pcBlock))
+			throw new FullStackException();
+	}
+
+	/**
+	 * Takes the block at the head.
+	 * @return the oldest block in the queue
+	 * @throws EmptyStackException
+	 */
+	public char pop()
+			throws EmptyStackException
+	{
+		long lHead = this.alCounters.get(HEAD);
+
+		while (true)
+		{
+			int iSlot = slot(lHead);
+			long lDelta = this.alSequences.get(iSlot) - (lHead + 1);
+
+			if (lDelta == 0)
+			{
+				if (this.alCounters.compareAndSet(HEAD, lHead, lHead + 1))
+				{
+					char cBlock = this.acSlots[iSlot];
+
+					// Free the slot for the producer one lap later.
+					this.alSequences.lazySet(iSlot, lHead + this.iSize);
+					return cBlock;
+				}
+
+				lHead = this.alCounters.get(HEAD);
+			}
+			else if (lDelta < 0)
+			{
+				// Nothing pushed there yet: the queue is empty, or a producer
+				// has claimed that position but not published its block yet.
+				if (this.alCounters.get(TAIL) - lHead <= 0)
+					throw new EmptyStackException();
+
+				Thread.yield();
+				lHead = this.alCounters.get(HEAD);
+			}
+			else
+			{
+				// Another consumer got it first
+				lHead = this.alCounters.get(HEAD);
+			}
+		}
+	}
+
+	/**
+	 * @return the block pop() would return, without taking it
+	 * @throws EmptyStackException
+	 */
+	public char pick()
+			throws EmptyStackException
+	{
+		while (true)
+		{
+			long lHead = this.alCounters.get(HEAD);
+			int iSlot = slot(lHead);
+
+			if (this.alSequences.get(iSlot) != lHead + 1)
+			{
+				// Empty, unless a producer is still publishing the head block (as in pop()).
+				if (this.alCounters.get(HEAD) == lHead && this.alCounters.get(TAIL) - lHead <= 0)
+					throw new EmptyStackException();
+
+				Thread.yield();
+				continue;
+			}
+
+			char cBlock = this.acSlots[iSlot];
+
+			// Still the head, so the block read was not popped and refilled meanwhile.
+			if (this.alCounters.get(HEAD) == lHead)
+				return cBlock;
+		}
+	}
+
+	/**
+	 * @return the block at the given position: getITop() is the head, 0 the tail
+	 * @throws OutOfBoundsStackIndexException if there is no block there
+	 */
+	public char getAt(final int piPosition)
+			throws OutOfBoundsStackIndexException
+	{
+		long lHead = this.alCounters.get(HEAD);
+		int iTop = top(lHead, this.alCounters.get(TAIL));
+
+		if (piPosition < 0 || piPosition > iTop)
+			throw new OutOfBoundsStackIndexException();
+
+		return this.acSlots[slot(lHead + iTop - piPosition)];
+	}
+
+	/**
+	 * @return number of blocks - 1
+	 */
+	public int getITop()
+	{
+		long lHead, lTail;
+
+		// A consistent pair: the head did not move while the tail was read.
+		do
+		{
+			lHead = this.alCounters.get(HEAD);
+			lTail = this.alCounters.get(TAIL);
+		}
+		while (this.alCounters.get(HEAD) != lHead);
+
+		return top(lHead, lTail);
+	}
+
+	public int getISize()
+	{
+		return this.iSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return getITop() == -1;
+	}
+
+	public boolean isFull()
+	{
+		return getITop() == this.iSize - 1;
+	}
+
+	/**
+	 * @return the blocks, head (next out) first; exact only while the queue is quiet
+	 */
+	public String dump()
+	{
+		long lHead = this.alCounters.get(HEAD);
+		int iCount = top(lHead, this.alCounters.get(TAIL)) + 1;
+		char[] acBlocks = new char[iCount];
+
+		for (int i = 0; i < iCount; i++)
+			acBlocks[i] = this.acSlots[slot(lHead + i)];
+
+		return new String(acBlocks);
+	}
+
+	/**
+	 * Appends a block if there is room.
+	 * @return false if the queue is full
+	 */
+	private boolean offer(final char pcBlock)
+	{
+		long lTail = this.alCounters.get(TAIL);
+
+		while (true)
+		{
+			int iSlot = slot(lTail);
+			long lDelta = this.alSequences.get(iSlot) - lTail;
+
+			if (lDelta == 0)
+			{
+				if (this.alCounters.compareAndSet(TAIL, lTail, lTail + 1))
+				{
+					this.acSlots[iSlot] = pcBlock;
+
+					// Publishes the block to the consumer of this position.
+					this.alSequences.lazySet(iSlot, lTail + 1);
+					return true;
+				}
+
+				lTail = this.alCounters.get(TAIL);
+			}
+			else if (lDelta < 0)
+			{
+				// Slot still holds the block from one lap earlier: the queue is full,
+				// or a consumer has claimed that block but not freed the slot yet.
+				if (lTail - this.alCounters.get(HEAD) >= this.iSize)
+					return false;
+
+				Thread.yield();
+				lTail = this.alCounters.get(TAIL);
+			}
+			else
+			{
+				// Another producer got it first
+				lTail = this.alCounters.get(TAIL);
+			}
+		}
+	}
+
+	private int slot(final long plPosition)
+	{
+		return (int)(plPosition % this.iSize);
+	}
+
+	private int top(final long plHead, final long plTail)
+	{
+		return (int)Math.max(-1, Math.min(this.iSize, plTail - plHead) - 1);
+	}
+}
+
+// EOF
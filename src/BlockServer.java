@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Class BlockServer
+ * Non-blocking NIO server exposing one BlockStack to other processes over TCP,
+ * using the pipelined binary protocol described in BlockProtocol.
+ *
+ * A single selector thread owns the stack, so, as in BlockStackOwner,
+ * the stack itself needs no lock. Everything a connection sent in one read
+ * is served in one go and answered with a single write.
+ *
+ * Usage: java BlockServer [port]
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class BlockServer
+{
+	/**
+	 * Default TCP port
+	 */
+	public static final int DEFAULT_PORT = 34600;
+
+	/**
+	 * Per-connection buffer sizes. The input buffer holds at least one maximal batch.
+	 */
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Above this many unsent response bytes, a connection is not read
+	 * from until its client catches up on reading responses.
+	 */
+	private static final int OUTPUT_HIGH_WATER = 256 * 1024;
+
+	private final BlockStack oStack;
+	private final InetSocketAddress oAddress;
+
+	private Selector oSelector;
+	private ServerSocketChannel oServerChannel;
+	private Thread oThread;
+	private volatile boolean bRunning = false;
+
+	/**
+	 * Number of requests served (a batch counts as one)
+	 */
+	private volatile long lRequests = 0;
+
+	/**
+	 * @param poStack stack to serve; nobody else may touch it while the server runs
+	 * @param poAddress where to listen; port 0 picks a free one
+	 */
+	public BlockServer(final BlockStack poStack, final InetSocketAddress poAddress)
+	{
+		this.oStack = poStack;
+		this.oAddress = poAddress;
+	}
+
+	/**
+	 * Binds and starts the selector thread.
+	 */
+	public synchronized void start()
+			throws IOException
+	{
+		this.oSelector = Selector.open();
+		try
+		{
+			this.oServerChannel = ServerSocketChannel.open();
+			this.oServerChannel.bind(this.oAddress);
+			this.oServerChannel.configureBlocking(false);
+			this.oServerChannel.register(this.oSelector, SelectionKey.OP_ACCEPT);
+		}
+		catch(IOException e)
+		{
+			// Not started: close() has no thread to stop, so nothing may stay open
+			if (this.oServerChannel != null)
+				this.oServerChannel.close();
+			this.oSelector.close();
+			throw e;
+		}
+
+		this.bRunning = true;
+		this.oThread = new Thread("BlockServer")
+		{
+			public void run()
+			{
+				serve();
+			}
+		};
+		this.oThread.start();
+	}
+
+	/**
+	 * Stops the server and closes every connection. Does nothing if the server
+	 * was never started.
+	 */
+	public synchronized void close()
+			throws IOException, InterruptedException
+	{
+		if (this.oThread == null)
+			return;
+
+		this.bRunning = false;
+		this.oSelector.wakeup();
+		this.oThread.join();
+	}
+
+	/**
+	 * @return the port actually bound
+	 */
+	public int getPort()
+	{
+		return this.oServerChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * The underlying stack. Only safe to inspect after close().
+	 */
+	public BlockStack getStack()
+	{
+		return this.oStack;
+	}
+
+	/**
+	 * @return number of requests served so far
+	 */
+	public long getRequestCount()
+	{
+		return this.lRequests;
+	}
+
+	/**
+	 * The selector loop.
+	 */
+	private void serve()
+	{
+		try
+		{
+			while (this.bRunning)
+			{
+				this.oSelector.select();
+
+				Iterator<SelectionKey> oKeys = this.oSelector.selectedKeys().iterator();
+
+				while (oKeys.hasNext())
+				{
+					SelectionKey oKey = oKeys.next();
+					oKeys.remove();
+
+					try
+					{
+						if (oKey.isAcceptable())
+							accept();
+						else
+							((Connection)oKey.attachment()).handle(oKey);
+					}
+					catch(IOException e)
+					{
+						// One connection going away must not take the server down.
+						oKey.cancel();
+						closeQuietly(oKey);
+					}
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("BlockServer: selector failed: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+		finally
+		{
+			for (SelectionKey oKey : this.oSelector.keys())
+				closeQuietly(oKey);
+
+			try
+			{
+				this.oSelector.close();
+			}
+			catch(IOException e)
+			{
+				// closing anyway
+			}
+		}
+	}
+
+	private static void closeQuietly(final SelectionKey poKey)
+	{
+		try
+		{
+			poKey.channel().close();
+		}
+		catch(IOException e)
+		{
+			// closing anyway
+		}
+	}
+
+	private void accept()
+			throws IOException
+	{
+		SocketChannel oChannel = this.oServerChannel.accept();
+
+		if (oChannel == null)
+			return;
+
+		oChannel.configureBlocking(false);
+		oChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		oChannel.register(this.oSelector, SelectionKey.OP_READ, new Connection(oChannel));
+	}
+
+	/**
+	 * Applies one operation to the stack.
+	 * @param poOut receives [status:1][block:2]
+	 * @return the status written
+	 */
+	private byte apply(final byte pbOp, final char pcArg, final ByteBuffer poOut)
+	{
+		byte bStatus = BlockProtocol.ST_OK;
+		char cResult = '\0';
+
+		try
+		{
+			switch (pbOp)
+			{
+				case BlockProtocol.OP_PUSH:
+					// BlockStack.isFull() only trips one slot too late.
+					if (this.oStack.getITop() == this.oStack.getISize() - 1)
+						throw new FullStackException();
+					this.oStack.push(pcArg);
+					break;
+
+				case BlockProtocol.OP_POP:
+					cResult = this.oStack.pop();
+					break;
+
+				case BlockProtocol.OP_PICK:
+					cResult = this.oStack.pick();
+					break;
+
+				default:
+					bStatus = BlockProtocol.ST_BAD_REQUEST;
+			}
+		}
+		catch(EmptyStackException e)
+		{
+			bStatus = BlockProtocol.ST_EMPTY;
+		}
+		catch(FullStackException e)
+		{
+			bStatus = BlockProtocol.ST_FULL;
+		}
+
+		poOut.put(bStatus).putChar(cResult);
+		return bStatus;
+	}
+
+	/**
+	 * State of one client connection.
+	 */
+	private final class Connection
+	{
+		private final SocketChannel oChannel;
+		private final ByteBuffer oIn = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+
+		/**
+		 * Responses not written yet. Always in append mode between calls.
+		 */
+		private ByteBuffer oOut = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+
+		Connection(final SocketChannel poChannel)
+		{
+			this.oChannel = poChannel;
+		}
+
+		void handle(final SelectionKey poKey)
+				throws IOException
+		{
+			if (poKey.isReadable())
+			{
+				if (this.oChannel.read(this.oIn) < 0)
+					throw new IOException("Connection closed by client");
+
+				this.oIn.flip();
+				serveRequests();
+				this.oIn.compact();
+			}
+
+			flush(poKey);
+		}
+
+		/**
+		 * Serves every complete request frame in the input buffer,
+		 * appending the responses to the output buffer.
+		 */
+		private void serveRequests()
+				throws IOException
+		{
+			int iSize;
+
+			while ((iSize = BlockProtocol.requestSize(this.oIn)) > 0 && iSize <= this.oIn.remaining())
+			{
+				byte bOp = this.oIn.get();
+				int iId = this.oIn.getInt();
+
+				if (bOp == BlockProtocol.OP_BATCH)
+				{
+					// requestSize() has checked the count against MAX_BATCH.
+					int iCount = this.oIn.getShort() & 0xFFFF;
+
+					ByteBuffer oOut = reserve(BlockProtocol.RESPONSE_SIZE + iCount * BlockProtocol.BATCH_RESULT_SIZE);
+					oOut.putInt(iId);
+
+					int iStatusAt = oOut.position();
+					oOut.put(BlockProtocol.ST_OK).putShort((short)iCount);
+
+					int iResultsAt = oOut.position();
+					int iFailedAt = -1;
+					char[] acSaved = oStack.getAcStack().clone();
+					int iSavedTop = oStack.getITop();
+
+					for (int i = 0; i < iCount; i++)
+					{
+						byte bSubOp = this.oIn.get();
+						char cArg = bSubOp == BlockProtocol.OP_PUSH ? this.oIn.getChar() : '\0';
+
+						if (iFailedAt >= 0)
+							oOut.put(BlockProtocol.ST_ABORTED).putChar('\0');
+						else if (apply(bSubOp, cArg, oOut) != BlockProtocol.ST_OK)
+							iFailedAt = oOut.position() - BlockProtocol.BATCH_RESULT_SIZE;
+					}
+
+					// All or nothing: undo what ran before the failure.
+					if (iFailedAt >= 0)
+					{
+						oStack.restore(acSaved, iSavedTop);
+						oOut.put(iStatusAt, oOut.get(iFailedAt));
+
+						for (int p = iResultsAt; p < iFailedAt; p += BlockProtocol.BATCH_RESULT_SIZE)
+							oOut.put(p, BlockProtocol.ST_ABORTED).putChar(p + 1, '\0');
+					}
+				}
+				else
+				{
+					char cArg = bOp == BlockProtocol.OP_PUSH ? this.oIn.getChar() : '\0';
+					apply(bOp, cArg, reserve(BlockProtocol.RESPONSE_SIZE).putInt(iId));
+				}
+
+				lRequests++;
+			}
+
+			// Cannot happen as long as the buffer holds a maximal batch; better than spinning.
+			if (iSize > this.oIn.capacity())
+				throw new IOException("Request frame too large: " + iSize);
+		}
+
+		/**
+		 * @return the output buffer, with room for piBytes more
+		 */
+		private ByteBuffer reserve(final int piBytes)
+		{
+			if (this.oOut.remaining() < piBytes)
+			{
+				ByteBuffer oBigger = ByteBuffer.allocateDirect(Math.max(this.oOut.capacity() * 2, this.oOut.position() + piBytes));
+				this.oOut.flip();
+				oBigger.put(this.oOut);
+				this.oOut = oBigger;
+			}
+
+			return this.oOut;
+		}
+
+		/**
+		 * Writes out as much of the pending responses as the socket takes,
+		 * and adjusts interest: write while something is pending, stop reading
+		 * while too much is pending.
+		 */
+		private void flush(final SelectionKey poKey)
+				throws IOException
+		{
+			this.oOut.flip();
+
+			if (this.oOut.hasRemaining())
+				this.oChannel.write(this.oOut);
+
+			int iPending = this.oOut.remaining();
+			this.oOut.compact();
+
+			int iInterest = 0;
+
+			if (iPending < OUTPUT_HIGH_WATER)
+				iInterest |= SelectionKey.OP_READ;
+			if (iPending > 0)
+				iInterest |= SelectionKey.OP_WRITE;
+
+			poKey.interestOps(iInterest);
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		int iPort = argv.length > 0 ? Integer.parseInt(argv[0]) : DEFAULT_PORT;
+
+		try
+		{
+			BlockStack oStack = new BlockStack();
+			oStack.setVerbose(false);
+
+			BlockServer oServer = new BlockServer(oStack, new InetSocketAddress(iPort));
+			oServer.start();
+
+			System.out.println("BlockServer listening on port " + oServer.getPort() + ".");
+		}
+		catch(IOException e)
+		{
+			System.err.println("Caught IOException: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
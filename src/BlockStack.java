@@ -1,5 +1,10 @@
 import sun.invoke.empty.Empty;
 
+import common.Semaphore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Class BlockStack
  * Implements character block stack and operations upon it.
@@ -11,7 +16,7 @@ import sun.invoke.empty.Empty;
  * Inspired by an earlier code by Prof. D. Probst
 
  */
-class BlockStack
+class BlockStack implements BlockStore
 {
 	/**
 	 * # of letters in the English alphabet + 2
@@ -42,8 +47,33 @@ class BlockStack
 	 * Number of times the stack has been accessed since
 	 * the program has started execution
 	 * (Incremented by 1 every single time the stack is accessed)
+	 * Atomic, because read-only accesses (pick(), getAt()) may run concurrently.
+	 */
+	private final AtomicInteger accessCounter = new AtomicInteger();
+
+	/**
+	 * Whether push() and pop() report every operation on STDOUT.
+	 * Benchmarks turn this off so that they time the stack and not the console.
+	 */
+	private boolean bVerbose = true;
+
+	/**
+	 * Change stream, created by the first call to changes(); null until then,
+	 * which keeps push() and pop() free of any publishing cost.
 	 */
-	private int accessCounter = 0;
+	private volatile StackChangePublisher oChanges = null;
+
+	/**
+	 * Source of stack IDs, which give BlockTransaction its lock order
+	 */
+	private static final AtomicLong soNextId = new AtomicLong();
+
+	private final long lId = soNextId.incrementAndGet();
+
+	/**
+	 * Held by a BlockTransaction for as long as it works on this stack
+	 */
+	private final Semaphore oTransactionLock = new Semaphore(1);
 
 	/**
 	 * Default constructor
@@ -89,7 +119,7 @@ class BlockStack
 	{
 		if (this.isEmpty())
 			throw new EmptyStackException();
-		this.accessCounter++;
+		this.accessCounter.incrementAndGet();
 		return this.acStack[this.iTop];
 	}
 
@@ -103,7 +133,7 @@ class BlockStack
 	{
 		if (piPosition < 0 || piPosition >= this.iSize)
 			throw new OutOfBoundsStackIndexException();
-		this.accessCounter++;
+		this.accessCounter.incrementAndGet();
 		return this.acStack[piPosition];
 	}
 
@@ -122,8 +152,14 @@ class BlockStack
 		else {
 			this.acStack[++this.iTop] = pcBlock;
 		}
-		this.accessCounter++;
-		System.out.println("Element " + pcBlock + " has successfully been pushed to the stack.");
+		this.accessCounter.incrementAndGet();
+
+		StackChangePublisher oChanges = this.oChanges;
+		if (oChanges != null)
+			oChanges.pushed(this.iTop, this.acStack[this.iTop]);
+
+		if (this.bVerbose)
+			System.out.println("Element " + pcBlock + " has successfully been pushed to the stack.");
 	}
 
 	/**
@@ -138,8 +174,14 @@ class BlockStack
 			throw new EmptyStackException();
 		char cBlock = this.acStack[this.iTop];
 		this.acStack[this.iTop--] = '*'; // Leave prev. value undefined
-		this.accessCounter++;
-		System.out.println("Element " + cBlock + " has successfully been popped (removed) from the stack.");
+		this.accessCounter.incrementAndGet();
+
+		StackChangePublisher oChanges = this.oChanges;
+		if (oChanges != null)
+			oChanges.popped(this.iTop + 1, cBlock);
+
+		if (this.bVerbose)
+			System.out.println("Element " + cBlock + " has successfully been popped (removed) from the stack.");
 		return cBlock;
 	}
 
@@ -183,7 +225,7 @@ class BlockStack
 	 */
 	public int getAccessCounter()
 	{
-		return accessCounter;
+		return accessCounter.get();
 	}
 
 	/**
@@ -193,69 +235,56 @@ class BlockStack
 	{
 		return acStack;
 	}
-}
 
-/**
- * Exception thrown when an invalid/forbidden operation
- * has been requested on an empty stack.
- */
-class EmptyStackException extends Exception
-{
-	public EmptyStackException()
-	{
-		super("Empty Stack !!!");
-	}
-	public EmptyStackException(String message)
+	/**
+	 * Stream of the pushes and pops made from now on, preceded by a snapshot
+	 * for every subscriber. The first call must not race with push() or pop().
+	 * @return the stack's change publisher, the same one on every call
+	 */
+	public synchronized StackChangePublisher changes()
 	{
-		super(message);
-	}
-}
+		if (this.oChanges == null)
+			this.oChanges = new StackChangePublisher(this.acStack, this.iTop, StackChangePublisher.DEFAULT_BUFFER_SIZE);
 
-/**
- * Exception thrown when an invalid/forbidden operation
- * has been requested on a full stack.
- */
-class FullStackException extends Exception
-{
-	public FullStackException()
-	{
-		super("Full Stack !!!");
-	}
-	public FullStackException(String message)
-	{
-		super(message);
+		return this.oChanges;
 	}
-}
 
-/**
- * Exception thrown when the stack size requested is invalid,
- * i.e. either negative or greater than the defined MAX_SIZE.
- */
-class InvalidStackSizeException extends Exception
-{
-	public InvalidStackSizeException()
+	/**
+	 * @return unique ID, ordering stacks for lock acquisition
+	 */
+	long getId()
 	{
-		super("Invalid Stack Size !!!");
+		return this.lId;
 	}
-	public InvalidStackSizeException(String message)
+
+	/**
+	 * Lock BlockTransaction holds while it uses this stack.
+	 */
+	Semaphore getTransactionLock()
 	{
-		super(message);
+		return this.oTransactionLock;
 	}
-}
 
-/**
- * Exception thrown when the requested index is outside the valid elements of the stack
- * i.e. either negative or greater than iTop (greater than the top of the stack).
- */
-class OutOfBoundsStackIndexException extends Exception
-{
-	public OutOfBoundsStackIndexException()
+	/**
+	 * Puts back contents saved earlier from getAcStack() and getITop(); for rollbacks.
+	 */
+	void restore(final char[] pacStack, final int piTop)
 	{
-		super("Invalid Stack Index !!! (index is a value outside of the current stack size)");
+		System.arraycopy(pacStack, 0, this.acStack, 0, this.acStack.length);
+		this.iTop = piTop;
+
+		StackChangePublisher oChanges = this.oChanges;
+		if (oChanges != null)
+			oChanges.restored(this.acStack, this.iTop);
 	}
-	public OutOfBoundsStackIndexException(String message)
+
+	/**
+	 * Turns per-operation console reporting on or off.
+	 * @param pbVerbose true to report every push() and pop(), false to stay silent
+	 */
+	public void setVerbose(final boolean pbVerbose)
 	{
-		super(message);
+		this.bVerbose = pbVerbose;
 	}
 }
 
@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Class BlockStackGenerator
+ * Generates the element-type specializations of the bounded block stack
+ * (IntBlockStack, LongBlockStack, ObjectBlockStack) from TypedBlockStack.template,
+ * so that they stay identical but for the element type and none of them boxes.
+ *
+ * The template is plain Java with $NAME$ placeholders. Run this after
+ * changing the template and commit the regenerated sources with it.
+ *
+ * Usage: java BlockStackGenerator [source directory]
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class BlockStackGenerator
+{
+	private static final String TEMPLATE = "TypedBlockStack.template";
+
+	/**
+	 * Placeholder names, in the order of the values in SPECIALIZATIONS
+	 */
+	private static final String[] PLACEHOLDERS = new String[]
+	{
+		"$CLASS$", "$TYPE_PARAMS$", "$WHAT$", "$T$", "$P$", "$ALLOC$", "$UNCHECKED$", "$CLEAR_SLOT$",
+		"$BENCH_TYPE$", "$BENCH_ELEMENT$", "$BOXED$", "$SAMPLE$"
+	};
+
+	private static final String[][] SPECIALIZATIONS = new String[][]
+	{
+		{
+			"IntBlockStack", "", "int values (handles, indices)", "int", "i",
+			"new int[piSize]", "", "",
+			"IntBlockStack", "int", "Integer", "return piIndex;"
+		},
+		{
+			"LongBlockStack", "", "long values (IDs, timestamps)", "long", "l",
+			"new long[piSize]", "", "",
+			"LongBlockStack", "long", "Long", "return (long)piIndex << 20;"
+		},
+		{
+			"ObjectBlockStack", "<E>", "object references", "E", "o",
+			"(E[])new Object[piSize]", "\t@SuppressWarnings(\"unchecked\")\n",
+			"\t\tthis.aoStack[this.iTop] = null; // Do not keep the popped object reachable\n",
+			"ObjectBlockStack<Object>", "Object", "Object", "return Integer.valueOf(piIndex & 127);   // cached, so never allocated"
+		}
+	};
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		Path oDirectory = Paths.get(argv.length > 0 ? argv[0] : "src");
+
+		try
+		{
+			String strTemplate = new String(Files.readAllBytes(oDirectory.resolve(TEMPLATE)), StandardCharsets.UTF_8);
+
+			for (String[] astrValues : SPECIALIZATIONS)
+			{
+				String strSource = strTemplate;
+
+				for (int i = 0; i < PLACEHOLDERS.length; i++)
+					strSource = strSource.replace(PLACEHOLDERS[i], astrValues[i]);
+
+				Path oTarget = oDirectory.resolve(astrValues[0] + ".java");
+				Files.write(oTarget, strSource.getBytes(StandardCharsets.UTF_8));
+				System.out.println("Generated " + oTarget);
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Caught IOException: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
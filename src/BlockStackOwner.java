@@ -0,0 +1,603 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class BlockStackOwner
+ * Single-owner ("actor") mode for a BlockStack.
+ *
+ * One dedicated thread owns the stack and is the only one ever touching it,
+ * so the stack needs no lock and its data stays in the owner's cache.
+ * Workers talk to the owner through mailboxes: every worker opens its own
+ * mailbox, made of a bounded single-producer/single-consumer request ring
+ * and a matching response ring. The owner sweeps all mailboxes and serves
+ * up to BATCH_SIZE requests from each per sweep.
+ *
+ * A request that fails with anything else than an empty or full stack is
+ * answered with the exception, which the worker gets wrapped in an
+ * IllegalStateException; the owner carries on with the next request.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class BlockStackOwner
+{
+	/*
+	 * Request codes
+	 */
+	private static final byte OP_PUSH = 1;
+	private static final byte OP_POP  = 2;
+	private static final byte OP_PICK = 3;
+
+	/*
+	 * Response status codes
+	 */
+	private static final byte ST_OK    = 0;
+	private static final byte ST_EMPTY = 1;
+	private static final byte ST_FULL  = 2;
+	private static final byte ST_ERROR = 3;   // the request threw; see Mailbox.aoErrors
+
+	/**
+	 * Default mailbox capacity (requests in flight per worker), power of 2
+	 */
+	public static final int DEFAULT_MAILBOX_CAPACITY = 16;
+
+	/**
+	 * Upper bound on requests served from one mailbox per sweep,
+	 * so that one busy worker cannot starve the others
+	 */
+	private static final int BATCH_SIZE = 32;
+
+	/**
+	 * Empty sweeps before the owner starts yielding / parks,
+	 * and polls before a waiting worker does the same
+	 */
+	private static final int IDLE_SPINS = 64;
+	private static final int IDLE_YIELDS = 64;
+
+	/**
+	 * The stack, only ever touched by the owner thread
+	 */
+	private final BlockStack oStack;
+
+	/**
+	 * The owner thread itself
+	 */
+	private final Thread oOwner;
+
+	/**
+	 * All mailboxes opened so far. Replaced (never mutated) under this object's monitor.
+	 */
+	private volatile Mailbox[] aoMailboxes = new Mailbox[0];
+
+	/**
+	 * Set once the owner should drain what it has and exit
+	 */
+	private volatile boolean bShutdown = false;
+
+	/**
+	 * Set by the owner right before it parks, so workers know to unpark it
+	 */
+	private volatile boolean bOwnerParked = false;
+
+	/**
+	 * Owns the default BlockStack
+	 */
+	public BlockStackOwner()
+	{
+		this(new BlockStack());
+	}
+
+	/**
+	 * Owns the supplied stack. The caller must not use it directly afterwards.
+	 * @param poStack the stack to serve
+	 */
+	public BlockStackOwner(final BlockStack poStack)
+	{
+		this.oStack = poStack;
+		this.oOwner = new Thread("BlockStackOwner")
+		{
+			public void run()
+			{
+				serve();
+			}
+		};
+		this.oOwner.setDaemon(true);
+	}
+
+	/**
+	 * Starts the owner thread.
+	 */
+	public void start()
+	{
+		this.oOwner.start();
+	}
+
+	/**
+	 * Stops the owner thread once every request already posted has been served.
+	 */
+	public void shutdown()
+			throws InterruptedException
+	{
+		this.bShutdown = true;
+		LockSupport.unpark(this.oOwner);
+		this.oOwner.join();
+	}
+
+	/**
+	 * Opens a mailbox with the default capacity.
+	 */
+	public Mailbox openMailbox()
+	{
+		return openMailbox(DEFAULT_MAILBOX_CAPACITY);
+	}
+
+	/**
+	 * Opens a new mailbox. A mailbox must only be used by a single worker thread.
+	 * @param piCapacity max requests in flight, rounded up to a power of 2
+	 */
+	public synchronized Mailbox openMailbox(final int piCapacity)
+	{
+		Mailbox oMailbox = new Mailbox(Integer.highestOneBit(Math.max(1, piCapacity - 1)) << 1);
+		Mailbox[] aoNew = new Mailbox[this.aoMailboxes.length + 1];
+
+		System.arraycopy(this.aoMailboxes, 0, aoNew, 0, this.aoMailboxes.length);
+		aoNew[aoNew.length - 1] = oMailbox;
+		this.aoMailboxes = aoNew;
+
+		return oMailbox;
+	}
+
+	/**
+	 * The underlying stack. Only safe to inspect after shutdown().
+	 */
+	public BlockStack getStack()
+	{
+		return this.oStack;
+	}
+
+	/**
+	 * The owner's loop: sweep all mailboxes, park when there was nothing to do.
+	 */
+	private void serve()
+	{
+		int iIdle = 0;
+
+		while (true)
+		{
+			int iServed = 0;
+
+			for (Mailbox oMailbox : this.aoMailboxes)
+				iServed += oMailbox.drain();
+
+			if (iServed > 0)
+			{
+				iIdle = 0;
+				continue;
+			}
+
+			if (this.bShutdown)
+				return;
+
+			if (++iIdle < IDLE_SPINS + IDLE_YIELDS)
+			{
+				backOff(iIdle);
+				continue;
+			}
+
+			// Announce we are about to sleep, then look once more so that
+			// a request posted in between is not missed.
+			this.bOwnerParked = true;
+
+			boolean bPending = false;
+			for (Mailbox oMailbox : this.aoMailboxes)
+				bPending |= oMailbox.hasRequests();
+
+			if (!bPending && !this.bShutdown)
+				LockSupport.park(this);
+
+			this.bOwnerParked = false;
+			iIdle = 0;
+		}
+	}
+
+	/**
+	 * Busy-waits for the first IDLE_SPINS rounds, then gives the CPU away
+	 * so that the other side gets to run even on a single core.
+	 */
+	private static void backOff(final int piRound)
+	{
+		if (piRound < IDLE_SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+
+	/**
+	 * Class Mailbox
+	 * The channel between one worker and the owner.
+	 * Requests and responses travel in the same order, so the n-th take()
+	 * always returns the answer to the n-th post.
+	 */
+	final class Mailbox
+	{
+		private final int iMask;
+
+		/*
+		 * Request ring: written by the worker, read by the owner
+		 */
+		private final byte[] abOps;
+		private final char[] acArgs;
+		private final AtomicLong oRequestTail = new AtomicLong(); // next slot the worker writes
+		private final AtomicLong oRequestHead = new AtomicLong(); // next slot the owner reads
+
+		/*
+		 * Response ring: written by the owner, read by the worker
+		 */
+		private final byte[] abStatus;
+		private final char[] acResults;
+		private final RuntimeException[] aoErrors;                 // what failed, for ST_ERROR answers
+		private final AtomicLong oResponseTail = new AtomicLong(); // next slot the owner writes
+		private long lResponseHead = 0;                            // next slot the worker reads (worker only)
+		private byte bLastStatus = ST_OK;                          // status of the last answer taken (worker only)
+		private RuntimeException oLastError = null;                // and its exception, for ST_ERROR (worker only)
+
+		/**
+		 * Answers moved out of the response ring to make room for more requests,
+		 * oldest first, as (status << 16 | block) (worker only)
+		 */
+		private final ArrayDeque<Integer> oSpilled = new ArrayDeque<Integer>();
+		private final ArrayDeque<RuntimeException> oSpilledErrors = new ArrayDeque<RuntimeException>();
+
+		/**
+		 * The worker this mailbox belongs to, and whether it is parked waiting on a response
+		 */
+		private volatile Thread oWorker;
+		private volatile boolean bWorkerParked = false;
+
+		private Mailbox(final int piCapacity)
+		{
+			this.iMask = piCapacity - 1;
+			this.abOps = new byte[piCapacity];
+			this.acArgs = new char[piCapacity];
+			this.abStatus = new byte[piCapacity];
+			this.acResults = new char[piCapacity];
+			this.aoErrors = new RuntimeException[piCapacity];
+		}
+
+		/**
+		 * Standard push operation, served by the owner
+		 * @throws FullStackException
+		 */
+		public void push(final char pcBlock)
+				throws FullStackException
+		{
+			post(OP_PUSH, pcBlock);
+			next();
+			checkFailed();
+
+			if (this.bLastStatus == ST_FULL)
+				throw new FullStackException();
+		}
+
+		/**
+		 * Standard pop operation, served by the owner
+		 * @return ex-top element of the stack, char
+		 * @throws EmptyStackException
+		 */
+		public char pop()
+				throws EmptyStackException
+		{
+			post(OP_POP, '\0');
+			char cResult = next();
+			checkFailed();
+
+			if (this.bLastStatus == ST_EMPTY)
+				throw new EmptyStackException();
+
+			return cResult;
+		}
+
+		/**
+		 * Picks a value from the top without modifying the stack, served by the owner
+		 * @return top element of the stack, char
+		 * @throws EmptyStackException
+		 */
+		public char pick()
+				throws EmptyStackException
+		{
+			post(OP_PICK, '\0');
+			char cResult = next();
+			checkFailed();
+
+			if (this.bLastStatus == ST_EMPTY)
+				throw new EmptyStackException();
+
+			return cResult;
+		}
+
+		/*
+		 * Pipelined variants: post several requests, then collect
+		 * the answers in the same order with take(). Any number of them
+		 * may be posted before the first take(): past the ring's capacity,
+		 * posting first moves the oldest answers aside for take() to return.
+		 */
+
+		public void postPush(final char pcBlock)
+		{
+			post(OP_PUSH, pcBlock);
+		}
+
+		public void postPop()
+		{
+			post(OP_POP, '\0');
+		}
+
+		public void postPick()
+		{
+			post(OP_PICK, '\0');
+		}
+
+		/**
+		 * Waits for the answer to the oldest outstanding request.
+		 * @return the block returned by pop() or pick(), unspecified for push()
+		 * @throws EmptyStackException
+		 * @throws FullStackException
+		 */
+		public char take()
+				throws EmptyStackException, FullStackException
+		{
+			char cResult = next();
+			checkFailed();
+
+			if (this.bLastStatus == ST_EMPTY)
+				throw new EmptyStackException();
+			if (this.bLastStatus == ST_FULL)
+				throw new FullStackException();
+
+			return cResult;
+		}
+
+		/**
+		 * Posts a request. The response ring must have room for its answer
+		 * too: as long as it holds a full ring of requests not taken yet
+		 * (in flight or answered), wait for the oldest answer and put it aside.
+		 */
+		private void post(final byte pbOp, final char pcArg)
+		{
+			long lTail = this.oRequestTail.get();
+
+			while (lTail - this.lResponseHead > this.iMask)
+			{
+				char cResult = awaitResponse();
+				this.oSpilled.add((this.bLastStatus << 16) | cResult);
+				if (this.bLastStatus == ST_ERROR)
+					this.oSpilledErrors.add(this.oLastError);
+			}
+
+			int iSlot = (int)(lTail & this.iMask);
+			this.abOps[iSlot] = pbOp;
+			this.acArgs[iSlot] = pcArg;
+
+			// Full (not lazy) store: it must not be reordered with the read of bOwnerParked below.
+			this.oRequestTail.set(lTail + 1);
+
+			if (bOwnerParked)
+				LockSupport.unpark(oOwner);
+		}
+
+		/**
+		 * Answer to the oldest request not taken yet: put aside by post(), or
+		 * still in the response ring. Leaves its status in bLastStatus.
+		 * @return the block carried by the answer
+		 */
+		private char next()
+		{
+			Integer oSpilled = this.oSpilled.poll();
+
+			if (oSpilled == null)
+				return awaitResponse();
+
+			this.bLastStatus = (byte)(oSpilled >>> 16);
+			if (this.bLastStatus == ST_ERROR)
+				this.oLastError = this.oSpilledErrors.poll();
+
+			return (char)(int)oSpilled;
+		}
+
+		/**
+		 * Rethrows the failure of the request just answered, if it failed.
+		 */
+		private void checkFailed()
+		{
+			if (this.bLastStatus == ST_ERROR)
+				throw new IllegalStateException("The stack owner failed to serve the request", this.oLastError);
+		}
+
+		/**
+		 * Waits for the oldest answer in the response ring
+		 * and leaves its status in bLastStatus.
+		 * @return the block carried by the answer
+		 */
+		private char awaitResponse()
+		{
+			long lHead = this.lResponseHead;
+			int iSpins = 0;
+
+			while (this.oResponseTail.get() == lHead)
+			{
+				if (++iSpins < IDLE_SPINS + IDLE_YIELDS)
+				{
+					backOff(iSpins);
+					continue;
+				}
+
+				this.oWorker = Thread.currentThread();
+				this.bWorkerParked = true;
+
+				if (this.oResponseTail.get() == lHead)
+					LockSupport.park(this);
+
+				this.bWorkerParked = false;
+			}
+
+			int iSlot = (int)(lHead & this.iMask);
+			this.bLastStatus = this.abStatus[iSlot];
+			if (this.bLastStatus == ST_ERROR)
+			{
+				this.oLastError = this.aoErrors[iSlot];
+				this.aoErrors[iSlot] = null;
+			}
+			this.lResponseHead = lHead + 1;
+
+			return this.acResults[iSlot];
+		}
+
+		/**
+		 * @return true if the worker has posted requests the owner has not read yet
+		 */
+		private boolean hasRequests()
+		{
+			return this.oRequestHead.get() != this.oRequestTail.get();
+		}
+
+		/**
+		 * Owner side: serves up to BATCH_SIZE pending requests.
+		 * The response ring cannot overflow: post() never lets the worker have more
+		 * requests posted and not taken from the ring than it has slots.
+		 * @return number of requests served
+		 */
+		private int drain()
+		{
+			long lHead = this.oRequestHead.get();
+			long lTail = Math.min(this.oRequestTail.get(), lHead + BATCH_SIZE);
+
+			if (lHead == lTail)
+				return 0;
+
+			long lResponse = this.oResponseTail.get();
+
+			for (long l = lHead; l < lTail; l++, lResponse++)
+			{
+				int iIn = (int)(l & this.iMask);
+				int iOut = (int)(lResponse & this.iMask);
+
+				byte bStatus = ST_OK;
+				char cResult = '\0';
+
+				try
+				{
+					switch (this.abOps[iIn])
+					{
+						case OP_PUSH:
+							// BlockStack.isFull() only trips one slot too late.
+							if (oStack.getITop() == oStack.getISize() - 1)
+								throw new FullStackException();
+							oStack.push(this.acArgs[iIn]);
+							break;
+
+						case OP_POP:
+							cResult = oStack.pop();
+							break;
+
+						case OP_PICK:
+							cResult = oStack.pick();
+							break;
+					}
+				}
+				catch(EmptyStackException e)
+				{
+					bStatus = ST_EMPTY;
+				}
+				catch(FullStackException e)
+				{
+					bStatus = ST_FULL;
+				}
+				catch(RuntimeException e)
+				{
+					// Answer it: the owner must outlive any single request, or every worker hangs.
+					bStatus = ST_ERROR;
+					this.aoErrors[iOut] = e;
+				}
+
+				this.abStatus[iOut] = bStatus;
+				this.acResults[iOut] = cResult;
+			}
+
+			// Free the request slots and publish all responses of the batch at once.
+			this.oRequestHead.lazySet(lTail);
+			this.oResponseTail.set(lResponse);
+
+			if (this.bWorkerParked)
+				LockSupport.unpark(this.oWorker);
+
+			return (int)(lTail - lHead);
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		int iPairs = argv.length > 0 ? Integer.parseInt(argv[0]) : 20;
+
+		try
+		{
+			BlockStack oStack = new BlockStack();
+			oStack.setVerbose(false);
+
+			BlockStackOwner oOwner = new BlockStackOwner(oStack);
+			oOwner.start();
+
+			// Several rings' worth of requests before the first take():
+			// every answer must still come back, in order.
+			Mailbox oMailbox = oOwner.openMailbox(4);
+
+			for (int i = 0; i < iPairs; i++)
+			{
+				oMailbox.postPush((char)('e' + i % 20));
+				oMailbox.postPop();
+			}
+
+			for (int i = 0; i < iPairs; i++)
+			{
+				oMailbox.take();
+
+				char cPopped = oMailbox.take();
+				if (cPopped != (char)('e' + i % 20))
+					throw new IllegalStateException("Answer #" + (2 * i + 1) + " is " + cPopped + ", expected " + (char)('e' + i % 20));
+			}
+
+			// Pushes past the top must come back as FullStackException, not take the owner down.
+			int iFull = 0;
+			for (int i = 0; i < oStack.getISize() + 2; i++)
+			{
+				try
+				{
+					oMailbox.push('x');
+				}
+				catch(FullStackException e)
+				{
+					iFull++;
+				}
+			}
+
+			if (iFull == 0 || oMailbox.pick() != 'x')
+				throw new IllegalStateException("Pushes onto a full stack were not refused cleanly");
+
+			oOwner.shutdown();
+
+			System.out.println(iFull + " pushes onto the full stack refused, owner still serving.");
+			System.out.println(2 * iPairs + " requests posted through a mailbox of 4 before taking any answer: all answered in order, stack top = " +
+					oStack.pick() + ".");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,53 @@
+/**
+ * Interface BlockStore
+ * What BlockManager's threads acquire blocks from and release them to:
+ * the operations of BlockStack, whatever order the blocks come out in.
+ *
+ * Positions run from 0 to getITop(); the block at getITop() is the one
+ * pop() returns next and pick() shows, lower positions come out later.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+interface BlockStore
+{
+	/**
+	 * Releases a block to the store.
+	 * @throws FullStackException if there is no room for it
+	 */
+	void push(char pcBlock) throws FullStackException;
+
+	/**
+	 * Acquires the next block.
+	 * @throws EmptyStackException if there is none
+	 */
+	char pop() throws EmptyStackException;
+
+	/**
+	 * @return the block pop() would return, without taking it
+	 * @throws EmptyStackException if there is none
+	 */
+	char pick() throws EmptyStackException;
+
+	/**
+	 * @return the block at the given position
+	 * @throws OutOfBoundsStackIndexException
+	 */
+	char getAt(int piPosition) throws OutOfBoundsStackIndexException;
+
+	/**
+	 * @return position of the next block out, i.e. number of blocks - 1
+	 */
+	int getITop();
+
+	/**
+	 * @return number of slots
+	 */
+	int getISize();
+
+	boolean isEmpty();
+
+	boolean isFull();
+}
+
+// EOF
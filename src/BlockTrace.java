@@ -0,0 +1,329 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Class BlockTrace
+ * The sequence of acquires and releases a workload performed on a block
+ * store, for TraceReplayer to perform again against other implementations.
+ *
+ * Binary format, big-endian (DataOutputStream):
+ *
+ *     int    MAGIC ("BTRC"), short VERSION
+ *     byte   LIFO or FIFO, the order in which the recorded store hands out blocks
+ *     int    number of slots, UTF initial contents (position 0 first)
+ *     then one record per operation, in the order they hit the store:
+ *       byte   ACQUIRE or RELEASE
+ *       short  TID of the thread
+ *       varint nanoseconds since the previous record (7 bits per byte)
+ *       char   the block acquired or released
+ *     byte   END, UTF final contents
+ *
+ * A record takes 8 bytes as long as operations come less than 2 ms apart.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public final class BlockTrace
+{
+	private static final int MAGIC = 0x42545243;
+	private static final short VERSION = 2;
+
+	/**
+	 * Record types
+	 */
+	public static final byte END = 0;
+	public static final byte ACQUIRE = 1;
+	public static final byte RELEASE = 2;
+
+	/**
+	 * Store orders
+	 */
+	public static final byte LIFO = 0;
+	public static final byte FIFO = 1;
+
+	private final byte bOrder;
+	private final int iSize;
+	private final String strInitial;
+	private final String strFinal;
+
+	/**
+	 * One entry per operation, in trace order
+	 */
+	private final byte[] abOps;
+	private final int[] aiTIDs;
+	private final long[] alNanos;
+	private final char[] acValues;
+
+	private BlockTrace(final byte pbOrder, final int piSize, final String pstrInitial, final String pstrFinal,
+			final byte[] pabOps, final int[] paiTIDs, final long[] palNanos, final char[] pacValues)
+	{
+		this.bOrder = pbOrder;
+		this.iSize = piSize;
+		this.strInitial = pstrInitial;
+		this.strFinal = pstrFinal;
+		this.abOps = pabOps;
+		this.aiTIDs = paiTIDs;
+		this.alNanos = palNanos;
+		this.acValues = pacValues;
+	}
+
+	/**
+	 * Reads a whole trace into memory.
+	 * @throws IOException if the file is not a complete trace
+	 */
+	public static BlockTrace read(final Path poFile)
+			throws IOException
+	{
+		DataInputStream oIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(poFile)));
+
+		try
+		{
+			if (oIn.readInt() != MAGIC)
+				throw new IOException(poFile + " is not a block trace");
+			short sVersion = oIn.readShort();
+			if (sVersion != VERSION && sVersion != 1)
+				throw new IOException(poFile + ": unsupported trace version");
+
+			// Version 1 did not say; BlockManager's default store is the stack.
+			byte bOrder = sVersion == 1 ? LIFO : oIn.readByte();
+			if (bOrder != LIFO && bOrder != FIFO)
+				throw new IOException(poFile + ": bad store order " + bOrder);
+
+			int iSize = oIn.readInt();
+			String strInitial = oIn.readUTF();
+
+			int iCount = 0;
+			byte[] abOps = new byte[64];
+			int[] aiTIDs = new int[64];
+			long[] alNanos = new long[64];
+			char[] acValues = new char[64];
+			long lNow = 0;
+			byte bOp;
+
+			while ((bOp = oIn.readByte()) != END)
+			{
+				if (bOp != ACQUIRE && bOp != RELEASE)
+					throw new IOException(poFile + ": bad record type " + bOp + " at operation " + iCount);
+
+				if (iCount == abOps.length)
+				{
+					abOps = Arrays.copyOf(abOps, 2 * iCount);
+					aiTIDs = Arrays.copyOf(aiTIDs, 2 * iCount);
+					alNanos = Arrays.copyOf(alNanos, 2 * iCount);
+					acValues = Arrays.copyOf(acValues, 2 * iCount);
+				}
+
+				abOps[iCount] = bOp;
+				aiTIDs[iCount] = oIn.readShort();
+				lNow += readVarLong(oIn);
+				alNanos[iCount] = lNow;
+				acValues[iCount] = oIn.readChar();
+				iCount++;
+			}
+
+			return new BlockTrace(bOrder, iSize, strInitial, oIn.readUTF(),
+					Arrays.copyOf(abOps, iCount), Arrays.copyOf(aiTIDs, iCount),
+					Arrays.copyOf(alNanos, iCount), Arrays.copyOf(acValues, iCount));
+		}
+		catch(java.io.EOFException e)
+		{
+			throw new IOException(poFile + ": trace ends early (recording not closed?)", e);
+		}
+		finally
+		{
+			oIn.close();
+		}
+	}
+
+	public int getSize()
+	{
+		return this.abOps.length;
+	}
+
+	/**
+	 * @return LIFO or FIFO, as the recorded store
+	 */
+	public byte getOrder()
+	{
+		return this.bOrder;
+	}
+
+	/**
+	 * @return number of slots of the recorded store
+	 */
+	public int getISize()
+	{
+		return this.iSize;
+	}
+
+	/**
+	 * @return contents before the first operation, position 0 first
+	 */
+	public String getInitial()
+	{
+		return this.strInitial;
+	}
+
+	/**
+	 * @return contents after the last operation, position 0 first
+	 */
+	public String getFinal()
+	{
+		return this.strFinal;
+	}
+
+	/**
+	 * @return ACQUIRE or RELEASE
+	 */
+	public byte getOp(final int piIndex)
+	{
+		return this.abOps[piIndex];
+	}
+
+	public int getTID(final int piIndex)
+	{
+		return this.aiTIDs[piIndex];
+	}
+
+	/**
+	 * @return nanoseconds from the start of the recording to the operation
+	 */
+	public long getNanos(final int piIndex)
+	{
+		return this.alNanos[piIndex];
+	}
+
+	public char getValue(final int piIndex)
+	{
+		return this.acValues[piIndex];
+	}
+
+	/**
+	 * @return contents of the store, position 0 first
+	 */
+	static String contents(final BlockStore poStore)
+			throws OutOfBoundsStackIndexException
+	{
+		char[] acBlocks = new char[poStore.getITop() + 1];
+
+		for (int i = 0; i < acBlocks.length; i++)
+			acBlocks[i] = poStore.getAt(i);
+
+		return new String(acBlocks);
+	}
+
+	private static void writeVarLong(final DataOutputStream poOut, long plValue)
+			throws IOException
+	{
+		while ((plValue & ~0x7FL) != 0)
+		{
+			poOut.writeByte((int)(plValue & 0x7F) | 0x80);
+			plValue >>>= 7;
+		}
+
+		poOut.writeByte((int)plValue);
+	}
+
+	private static long readVarLong(final DataInputStream poIn)
+			throws IOException
+	{
+		long lValue = 0;
+
+		for (int iShift = 0; ; iShift += 7)
+		{
+			int iByte = poIn.readUnsignedByte();
+			lValue |= (long)(iByte & 0x7F) << iShift;
+
+			if ((iByte & 0x80) == 0)
+				return lValue;
+		}
+	}
+
+	/**
+	 * Class Recorder
+	 * Writes a trace while the workload runs. Operations are to be recorded
+	 * while the thread still has the store to itself, so that the order of the
+	 * records is the order in which the store saw them.
+	 */
+	public static final class Recorder
+	{
+		private final DataOutputStream oOut;
+		private long lLast;
+		private int iCount = 0;
+
+		/**
+		 * Starts a trace, with the current contents of the store as initial state.
+		 * @throws IOException
+		 * @throws OutOfBoundsStackIndexException
+		 */
+		public Recorder(final Path poFile, final BlockStore poStore)
+				throws IOException, OutOfBoundsStackIndexException
+		{
+			this.oOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(poFile)));
+			this.oOut.writeInt(MAGIC);
+			this.oOut.writeShort(VERSION);
+			this.oOut.writeByte(poStore instanceof BlockQueue ? FIFO : LIFO);
+			this.oOut.writeInt(poStore.getISize());
+			this.oOut.writeUTF(contents(poStore));
+
+			this.lLast = System.nanoTime();
+		}
+
+		public void acquired(final int piTID, final char pcBlock)
+				throws IOException
+		{
+			record(ACQUIRE, piTID, pcBlock);
+		}
+
+		public void released(final int piTID, final char pcBlock)
+				throws IOException
+		{
+			record(RELEASE, piTID, pcBlock);
+		}
+
+		private synchronized void record(final byte pbOp, final int piTID, final char pcBlock)
+				throws IOException
+		{
+			// Read under the lock, so that the deltas are never negative.
+			long lNow = System.nanoTime();
+
+			this.oOut.writeByte(pbOp);
+			this.oOut.writeShort(piTID);
+			writeVarLong(this.oOut, lNow - this.lLast);
+			this.oOut.writeChar(pcBlock);
+
+			this.lLast = lNow;
+			this.iCount++;
+		}
+
+		/**
+		 * @return number of operations recorded so far
+		 */
+		public synchronized int getCount()
+		{
+			return this.iCount;
+		}
+
+		/**
+		 * Ends the trace with the current contents of the store as final state.
+		 * Only once the workload is over.
+		 * @throws IOException
+		 * @throws OutOfBoundsStackIndexException
+		 */
+		public synchronized void close(final BlockStore poStore)
+				throws IOException, OutOfBoundsStackIndexException
+		{
+			this.oOut.writeByte(END);
+			this.oOut.writeUTF(contents(poStore));
+			this.oOut.close();
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,401 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class BlockTransaction
+ * Runs a short sequence of operations on one or more BlockStacks atomically
+ * with respect to every other transaction, without any global lock:
+ *
+ *     char cMoved = BlockTransaction.atomically(new BlockTransaction.Body<Character>()
+ *     {
+ *         public Character run(BlockTransaction poTx) throws Exception
+ *         {
+ *             char cBlock = poTx.pop(oFrom);
+ *             poTx.push(oTo, cBlock);
+ *             return cBlock;
+ *         }
+ *     });
+ *
+ * Each stack has its own lock, taken the first time the transaction touches
+ * the stack and held until the end (two-phase locking), along with a copy of
+ * the stack's contents to roll back to. Stacks are locked in ID order: a
+ * stack busy with a lower ID than one already held is a conflict, on which
+ * the transaction rolls back, releases everything, backs off for a random
+ * while and runs again, this time locking every stack it knows about up
+ * front, in order. So transactions never deadlock, whatever order they
+ * touch stacks in. The body may therefore run several times and must not
+ * have other side effects.
+ *
+ * If the body throws (e.g. EmptyStackException), everything it did is
+ * rolled back and the exception propagates: no retry.
+ *
+ * Atomicity only holds against other transactions; code calling BlockStack
+ * directly does not take the transaction locks.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public final class BlockTransaction
+{
+	/**
+	 * Longest back-off between two attempts
+	 */
+	private static final long MAX_BACKOFF_NANOS = 1000000L;
+
+	/**
+	 * Transactions that had to be run again, over all threads
+	 */
+	private static final AtomicLong soRetries = new AtomicLong();
+
+	/**
+	 * The work of a transaction.
+	 */
+	public interface Body<R>
+	{
+		R run(BlockTransaction poTx) throws Exception;
+	}
+
+	/**
+	 * Thrown through the body when a stack cannot be locked in order.
+	 * Preallocated: it is a signal, not an error.
+	 */
+	private static final class Conflict extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		Conflict()
+		{
+			super("Transaction conflict", null, false, false);
+		}
+	}
+
+	private static final Conflict CONFLICT = new Conflict();
+
+	private static final Comparator<BlockStack> BY_ID = new Comparator<BlockStack>()
+	{
+		public int compare(BlockStack poA, BlockStack poB)
+		{
+			return Long.compare(poA.getId(), poB.getId());
+		}
+	};
+
+	/**
+	 * Stacks locked by this attempt, with their contents when they were locked
+	 */
+	private final List<BlockStack> oLocked = new ArrayList<BlockStack>();
+	private final List<char[]> oSavedStacks = new ArrayList<char[]>();
+	private final List<Integer> oSavedTops = new ArrayList<Integer>();
+	private long lHighestId = 0;
+
+	/**
+	 * Set once this attempt hit a conflict; it can only roll back then
+	 */
+	private boolean bConflict = false;
+
+	/**
+	 * Stacks this transaction has touched in any attempt, to lock up front when retrying
+	 */
+	private final List<BlockStack> oKnown = new ArrayList<BlockStack>();
+
+	private BlockTransaction()
+	{
+	}
+
+	/**
+	 * Runs the body as one transaction, as many times as conflicts require.
+	 * @return what the body returned on the attempt that committed
+	 * @throws Exception what the body threw, after rolling everything back
+	 */
+	public static <R> R atomically(final Body<R> poBody)
+			throws Exception
+	{
+		BlockTransaction oTx = new BlockTransaction();
+
+		for (int iAttempt = 0; ; iAttempt++)
+		{
+			boolean bCommit = false;
+
+			try
+			{
+				oTx.lockKnown();
+
+				R oResult = poBody.run(oTx);
+
+				// The body may have swallowed the conflict; it still happened.
+				if (!oTx.bConflict)
+				{
+					bCommit = true;
+					return oResult;
+				}
+			}
+			catch(Conflict e)
+			{
+				// retried below
+			}
+			catch(Exception e)
+			{
+				if (!oTx.bConflict)
+					throw e;
+			}
+			finally
+			{
+				oTx.finish(bCommit);
+			}
+
+			soRetries.incrementAndGet();
+			backOff(iAttempt);
+		}
+	}
+
+	/**
+	 * @return number of transaction attempts repeated because of conflicts
+	 */
+	public static long getRetries()
+	{
+		return soRetries.get();
+	}
+
+	/*
+	 * ----------------------------------
+	 * Operations, as in BlockStack
+	 * ----------------------------------
+	 */
+
+	/**
+	 * Checks for room itself: BlockStack.isFull() only trips one slot too late.
+	 */
+	public void push(final BlockStack poStack, final char pcBlock)
+			throws FullStackException, InterruptedException
+	{
+		if (isFull(poStack))
+			throw new FullStackException();
+
+		poStack.push(pcBlock);
+	}
+
+	public char pop(final BlockStack poStack)
+			throws EmptyStackException, InterruptedException
+	{
+		return enlist(poStack).pop();
+	}
+
+	public char pick(final BlockStack poStack)
+			throws EmptyStackException, InterruptedException
+	{
+		return enlist(poStack).pick();
+	}
+
+	public char getAt(final BlockStack poStack, final int piPosition)
+			throws OutOfBoundsStackIndexException, InterruptedException
+	{
+		return enlist(poStack).getAt(piPosition);
+	}
+
+	public int getITop(final BlockStack poStack)
+			throws InterruptedException
+	{
+		return enlist(poStack).getITop();
+	}
+
+	public boolean isEmpty(final BlockStack poStack)
+			throws InterruptedException
+	{
+		return enlist(poStack).isEmpty();
+	}
+
+	/**
+	 * @return whether every slot of the stack is in use
+	 */
+	public boolean isFull(final BlockStack poStack)
+			throws InterruptedException
+	{
+		return enlist(poStack).getITop() == poStack.getISize() - 1;
+	}
+
+	/**
+	 * Makes sure the stack is locked by this transaction.
+	 * @return the stack
+	 * @throws Conflict if the stack is out of order and busy
+	 */
+	private BlockStack enlist(final BlockStack poStack)
+			throws InterruptedException
+	{
+		if (this.bConflict)
+			throw CONFLICT;
+
+		if (this.oLocked.contains(poStack))
+			return poStack;
+
+		if (!this.oKnown.contains(poStack))
+			this.oKnown.add(poStack);
+
+		// In order, waiting is safe; out of order, it could deadlock.
+		if (poStack.getId() > this.lHighestId)
+		{
+			poStack.getTransactionLock().PInterruptibly();
+		}
+		else if (!poStack.getTransactionLock().tryP())
+		{
+			this.bConflict = true;
+			throw CONFLICT;
+		}
+
+		locked(poStack);
+		return poStack;
+	}
+
+	/**
+	 * Locks, in ID order, every stack an earlier attempt touched.
+	 */
+	private void lockKnown()
+			throws InterruptedException
+	{
+		Collections.sort(this.oKnown, BY_ID);
+
+		for (BlockStack oStack : this.oKnown)
+		{
+			oStack.getTransactionLock().PInterruptibly();
+			locked(oStack);
+		}
+	}
+
+	private void locked(final BlockStack poStack)
+	{
+		this.oLocked.add(poStack);
+		this.oSavedStacks.add(poStack.getAcStack().clone());
+		this.oSavedTops.add(poStack.getITop());
+		this.lHighestId = Math.max(this.lHighestId, poStack.getId());
+	}
+
+	/**
+	 * Ends the attempt: rolls back unless committing, releases every lock.
+	 */
+	private void finish(final boolean pbCommit)
+	{
+		for (int i = this.oLocked.size() - 1; i >= 0; i--)
+		{
+			BlockStack oStack = this.oLocked.get(i);
+
+			// Stacks only read need no restoring (nor a snapshot sent to their subscribers).
+			if (!pbCommit && (oStack.getITop() != this.oSavedTops.get(i) || !Arrays.equals(oStack.getAcStack(), this.oSavedStacks.get(i))))
+				oStack.restore(this.oSavedStacks.get(i), this.oSavedTops.get(i));
+
+			oStack.getTransactionLock().V();
+		}
+
+		this.oLocked.clear();
+		this.oSavedStacks.clear();
+		this.oSavedTops.clear();
+		this.lHighestId = 0;
+		this.bConflict = false;
+	}
+
+	/**
+	 * Random exponential back-off, so that conflicting transactions stop colliding.
+	 */
+	private static void backOff(final int piAttempt)
+	{
+		long lCeiling = Math.min(MAX_BACKOFF_NANOS, 1000L << Math.min(piAttempt, 20));
+		LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(lCeiling) + 1);
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		final int iThreads = argv.length > 0 ? Integer.parseInt(argv[0]) : 8;
+		final int iMoves = argv.length > 1 ? Integer.parseInt(argv[1]) : 20000;
+
+		try
+		{
+			final BlockStack[] aoStacks = new BlockStack[] { new BlockStack(), new BlockStack(), new BlockStack() };
+			for (BlockStack oStack : aoStacks)
+				oStack.setVerbose(false);
+
+			Thread[] aoWorkers = new Thread[iThreads];
+			final AtomicLong oMoved = new AtomicLong();
+			long lStart = System.nanoTime();
+
+			// Every thread moves blocks around between random pairs of stacks, in both
+			// directions, so plain nested locking would deadlock sooner or later.
+			for (int t = 0; t < iThreads; t++)
+			{
+				aoWorkers[t] = new Thread()
+				{
+					public void run()
+					{
+						ThreadLocalRandom oRandom = ThreadLocalRandom.current();
+
+						for (int i = 0; i < iMoves; i++)
+						{
+							final BlockStack oFrom = aoStacks[oRandom.nextInt(aoStacks.length)];
+							final BlockStack oTo = aoStacks[oRandom.nextInt(aoStacks.length)];
+
+							if (oFrom == oTo)
+								continue;
+
+							try
+							{
+								BlockTransaction.atomically(new Body<Character>()
+								{
+									public Character run(BlockTransaction poTx) throws Exception
+									{
+										char cBlock = poTx.pop(oFrom);
+										poTx.push(oTo, cBlock);
+										return cBlock;
+									}
+								});
+								oMoved.incrementAndGet();
+							}
+							catch(EmptyStackException e)
+							{
+								// nothing to move
+							}
+							catch(FullStackException e)
+							{
+								// no room: rolled back, the block stays where it was
+							}
+							catch(Exception e)
+							{
+								throw new RuntimeException(e);
+							}
+						}
+					}
+				};
+				aoWorkers[t].start();
+			}
+
+			for (Thread oWorker : aoWorkers)
+				oWorker.join();
+
+			long lNanos = System.nanoTime() - lStart;
+			int iBlocks = 0;
+
+			for (BlockStack oStack : aoStacks)
+			{
+				iBlocks += oStack.getITop() + 1;
+				System.out.println("Stack #" + oStack.getId() + ": top = " + oStack.getITop());
+			}
+
+			System.out.println(String.format("%d moves committed in %.1f ms, %d retries; %d blocks in all (expected %d)",
+					oMoved.get(), lNanos / 1e6, getRetries(), iBlocks, 4 * aoStacks.length));
+
+			if (iBlocks != 4 * aoStacks.length)
+				System.exit(1);
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,20 @@
+/**
+ * Exception thrown when an invalid/forbidden operation
+ * has been requested on an empty stack.
+ */
+class EmptyStackException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	public EmptyStackException()
+	{
+		super("Empty Stack !!!");
+	}
+
+	public EmptyStackException(String message)
+	{
+		super(message);
+	}
+}
+
+// EOF
@@ -0,0 +1,489 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class FlatCombiningBlockStack
+ * Flat-combining front end for a BlockStack.
+ *
+ * Every thread publishes its request in its own publication slot. Whoever
+ * grabs the combiner role walks all slots and applies the pending requests
+ * to the underlying stack in one pass, so under a burst the lock changes
+ * hands once per pass instead of once per operation. A push and a pop that
+ * are pending in the same pass cancel each other out without touching the
+ * stack at all (the pop simply gets the pushed block).
+ *
+ * Slots idle for RETIRE_AFTER_PASSES combining passes are unlinked by the
+ * combiner, so that short-lived threads do not leave the list growing and
+ * every pass scanning their slots; a thread whose slot was retired links it
+ * back in, under the combiner lock, the next time it makes a request.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class FlatCombiningBlockStack
+{
+	/*
+	 * Request codes stored in a slot
+	 */
+	private static final int OP_NONE = 0;
+	private static final int OP_PUSH = 1;
+	private static final int OP_POP  = 2;
+	private static final int OP_PICK = 3;
+
+	/**
+	 * Number of failed attempts at the combiner role before a waiter yields the CPU
+	 */
+	private static final int SPINS_BEFORE_YIELD = 64;
+
+	/**
+	 * Combining passes a slot may go unused before the combiner unlinks it
+	 */
+	private static final long RETIRE_AFTER_PASSES = 1024;
+
+	/**
+	 * The stack all requests are eventually applied to.
+	 * Only the current combiner ever touches it.
+	 */
+	private final BlockStack oStack;
+
+	/**
+	 * Held by the thread currently acting as the combiner
+	 */
+	private final AtomicBoolean oCombinerLock = new AtomicBoolean(false);
+
+	/**
+	 * Head of the publication list. Slots are prepended with compare-and-set,
+	 * so a combiner can safely walk the list while new threads register;
+	 * only the combiner unlinks them, and never the head.
+	 */
+	private final AtomicReference<Slot> oSlots = new AtomicReference<Slot>();
+
+	/**
+	 * Per-thread publication slot
+	 */
+	private final ThreadLocal<Slot> oMySlot = new ThreadLocal<Slot>()
+	{
+		protected Slot initialValue()
+		{
+			Slot oSlot = new Slot();
+			link(oSlot);
+			return oSlot;
+		}
+	};
+
+	/*
+	 * Statistics, only written by the combiner
+	 */
+	private volatile long lCombiningPasses = 0;
+	private volatile long lEliminatedPairs = 0;
+	private volatile long lRetiredSlots = 0;
+
+	/**
+	 * Wraps the default BlockStack
+	 */
+	public FlatCombiningBlockStack()
+	{
+		this(new BlockStack());
+	}
+
+	/**
+	 * Wraps the supplied stack. The caller must not use it directly afterwards.
+	 * @param poStack stack to combine requests onto
+	 */
+	public FlatCombiningBlockStack(final BlockStack poStack)
+	{
+		this.oStack = poStack;
+	}
+
+	/**
+	 * Standard push operation
+	 * @throws FullStackException
+	 */
+	public void push(final char pcBlock)
+			throws FullStackException
+	{
+		Slot oSlot = submit(OP_PUSH, pcBlock);
+
+		if (oSlot.oError != null)
+			throw (FullStackException)unchecked(oSlot.oError);
+	}
+
+	/**
+	 * Standard pop operation
+	 * @return ex-top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pop()
+			throws EmptyStackException
+	{
+		Slot oSlot = submit(OP_POP, '\0');
+
+		if (oSlot.oError != null)
+			throw (EmptyStackException)unchecked(oSlot.oError);
+
+		return oSlot.cResult;
+	}
+
+	/**
+	 * Picks a value from the top without modifying the stack
+	 * @return top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pick()
+			throws EmptyStackException
+	{
+		Slot oSlot = submit(OP_PICK, '\0');
+
+		if (oSlot.oError != null)
+			throw (EmptyStackException)unchecked(oSlot.oError);
+
+		return oSlot.cResult;
+	}
+
+	/**
+	 * Publishes a request in the calling thread's slot and waits until
+	 * some combiner (possibly this very thread) has served it.
+	 * @return the slot, holding the result or the exception to rethrow
+	 */
+	private Slot submit(final int piOp, final char pcArg)
+	{
+		Slot oSlot = this.oMySlot.get();
+
+		oSlot.cArg = pcArg;
+		oSlot.oError = null;
+		oSlot.iOp = piOp; // volatile write publishes cArg
+
+		int iSpins = 0;
+
+		while (oSlot.iOp != OP_NONE)
+		{
+			if (!this.oCombinerLock.get() && this.oCombinerLock.compareAndSet(false, true))
+			{
+				try
+				{
+					// Retired while idle: nobody would ever see the request otherwise.
+					if (!oSlot.bActive)
+						link(oSlot);
+
+					combine();
+				}
+				finally
+				{
+					this.oCombinerLock.set(false);
+				}
+			}
+			else if (++iSpins % SPINS_BEFORE_YIELD == 0)
+			{
+				Thread.yield();
+			}
+		}
+
+		return oSlot;
+	}
+
+	/**
+	 * Prepends a slot to the publication list. For a retired slot,
+	 * only while holding the combiner lock, so that no pass is unlinking it.
+	 */
+	private void link(final Slot poSlot)
+	{
+		Slot oHead;
+
+		poSlot.lLastUsed = this.lCombiningPasses;
+		poSlot.bActive = true;
+
+		do
+		{
+			oHead = this.oSlots.get();
+			poSlot.oNext = oHead;
+		}
+		while (!this.oSlots.compareAndSet(oHead, poSlot));
+	}
+
+	/**
+	 * @return the exception to throw, rethrowing it right away if it is unchecked
+	 */
+	private static Exception unchecked(final Exception poError)
+	{
+		if (poError instanceof RuntimeException)
+			throw (RuntimeException)poError;
+
+		return poError;
+	}
+
+	/**
+	 * One combining pass. Pending pushes and pops are paired off first,
+	 * whatever is left over is applied to the stack in list order.
+	 * Must only be called while holding the combiner lock.
+	 */
+	private void combine()
+	{
+		Slot oPendingPush = null;
+		Slot oPendingPop = null;
+		Slot oPrevious = null;
+		long lPass = this.lCombiningPasses;
+
+		for (Slot oSlot = this.oSlots.get(); oSlot != null; oPrevious = oSlot, oSlot = oSlot.oNext)
+		{
+			int iOp = oSlot.iOp;
+
+			if (iOp == OP_NONE)
+			{
+				// Idle for long (or its thread is gone): unlink it, but never the head,
+				// which new threads may be linking in front of.
+				if (oPrevious != null && lPass - oSlot.lLastUsed > RETIRE_AFTER_PASSES)
+				{
+					oSlot.bActive = false;
+					oPrevious.oNext = oSlot.oNext;
+					oSlot = oPrevious;
+					this.lRetiredSlots++;
+				}
+				continue;
+			}
+
+			oSlot.lLastUsed = lPass;
+
+			if (iOp == OP_PUSH)
+			{
+				if (oPendingPop != null && eliminate(oSlot, oPendingPop))
+				{
+					oPendingPop = oPendingPop.oNextPending;
+					continue;
+				}
+				oSlot.oNextPending = oPendingPush;
+				oPendingPush = oSlot;
+			}
+			else if (iOp == OP_POP)
+			{
+				if (oPendingPush != null && eliminate(oPendingPush, oSlot))
+				{
+					oPendingPush = oPendingPush.oNextPending;
+					continue;
+				}
+				oSlot.oNextPending = oPendingPop;
+				oPendingPop = oSlot;
+			}
+			else if (iOp == OP_PICK)
+			{
+				apply(oSlot, iOp);
+			}
+		}
+
+		for (; oPendingPush != null; oPendingPush = oPendingPush.oNextPending)
+			apply(oPendingPush, OP_PUSH);
+
+		for (; oPendingPop != null; oPendingPop = oPendingPop.oNextPending)
+			apply(oPendingPop, OP_POP);
+
+		this.lCombiningPasses++;
+	}
+
+	/**
+	 * Serves a push and a pop together as if they ran back to back.
+	 * Mirrors BlockStack.push(): a block pushed onto an empty stack comes back as 'a'.
+	 * @return false if the pair cannot cancel out (the push would have failed)
+	 */
+	private boolean eliminate(final Slot poPush, final Slot poPop)
+	{
+		// BlockStack.isFull() only trips one slot too late.
+		if (this.oStack.getITop() == this.oStack.getISize() - 1)
+			return false;
+
+		poPop.cResult = this.oStack.isEmpty() ? 'a' : poPush.cArg;
+		poPush.iOp = OP_NONE;
+		poPop.iOp = OP_NONE;
+		this.lEliminatedPairs++;
+
+		return true;
+	}
+
+	/**
+	 * Applies a single request to the underlying stack and releases its owner.
+	 */
+	private void apply(final Slot poSlot, final int piOp)
+	{
+		try
+		{
+			switch (piOp)
+			{
+				case OP_PUSH:
+					if (this.oStack.getITop() == this.oStack.getISize() - 1)
+						throw new FullStackException();
+					this.oStack.push(poSlot.cArg);
+					break;
+
+				case OP_POP:
+					poSlot.cResult = this.oStack.pop();
+					break;
+
+				case OP_PICK:
+					poSlot.cResult = this.oStack.pick();
+					break;
+			}
+		}
+		catch (FullStackException e)
+		{
+			poSlot.oError = e;
+		}
+		catch (EmptyStackException e)
+		{
+			poSlot.oError = e;
+		}
+		catch (RuntimeException e)
+		{
+			poSlot.oError = e;
+		}
+		finally
+		{
+			poSlot.iOp = OP_NONE; // volatile write publishes the result
+		}
+	}
+
+	/*------- Accessor Methods -------*/
+
+	/**
+	 * The underlying stack. Only safe to inspect while no operations are in flight.
+	 * @return the wrapped stack
+	 */
+	public BlockStack getStack()
+	{
+		return this.oStack;
+	}
+
+	/**
+	 * @return number of combining passes performed so far
+	 */
+	public long getCombiningPasses()
+	{
+		return this.lCombiningPasses;
+	}
+
+	/**
+	 * @return number of push/pop pairs that cancelled out without touching the stack
+	 */
+	public long getEliminatedPairs()
+	{
+		return this.lEliminatedPairs;
+	}
+
+	/**
+	 * @return number of idle slots unlinked from the publication list so far
+	 */
+	public long getRetiredSlots()
+	{
+		return this.lRetiredSlots;
+	}
+
+	/**
+	 * Publication record of one thread.
+	 */
+	private static final class Slot
+	{
+		/**
+		 * Pending request, OP_NONE once served
+		 */
+		volatile int iOp = OP_NONE;
+
+		/**
+		 * Block to push
+		 */
+		char cArg;
+
+		/**
+		 * Block returned by pop() or pick()
+		 */
+		char cResult;
+
+		/**
+		 * Exception to rethrow in the requesting thread, if any
+		 */
+		Exception oError;
+
+		/**
+		 * Next slot in the publication list
+		 */
+		Slot oNext;
+
+		/**
+		 * False once the combiner has unlinked the slot
+		 */
+		volatile boolean bActive;
+
+		/**
+		 * Combining pass that last served the slot; combiner only
+		 */
+		long lLastUsed;
+
+		/**
+		 * Link used by the combiner to keep track of yet unmatched requests
+		 */
+		Slot oNextPending;
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		int iThreads = argv.length > 0 ? Integer.parseInt(argv[0]) : 4000;
+
+		try
+		{
+			BlockStack oStack = new BlockStack();
+			oStack.setVerbose(false);
+
+			final FlatCombiningBlockStack oCombining = new FlatCombiningBlockStack(oStack);
+
+			// Pushing past the top must fail cleanly and leave the structure usable.
+			int iPushed = 0;
+			try
+			{
+				for (int i = 0; i <= oStack.getISize(); i++, iPushed++)
+					oCombining.push('x');
+			}
+			catch(FullStackException e)
+			{
+				System.out.println("Full after " + iPushed + " pushes, top = " + oStack.getITop() + ".");
+			}
+
+			// Short-lived threads, as in BlockManager: their slots must not pile up.
+			final Exception[] aoFailure = new Exception[1];
+
+			for (int i = 0; i < iThreads; i++)
+			{
+				Thread oThread = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							oCombining.push(oCombining.pop());
+						}
+						catch(Exception e)
+						{
+							aoFailure[0] = e;
+						}
+					}
+				};
+				oThread.start();
+				oThread.join();
+			}
+
+			if (aoFailure[0] != null)
+				throw aoFailure[0];
+
+			System.out.println(iThreads + " short-lived threads: " + oCombining.getCombiningPasses() + " passes, " +
+					oCombining.getRetiredSlots() + " idle slots retired, top = " + oCombining.pick() + ".");
+
+			if (oCombining.getRetiredSlots() == 0)
+				throw new IllegalStateException("No slot of a finished thread was ever retired");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
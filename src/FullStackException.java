@@ -0,0 +1,20 @@
+/**
+ * Exception thrown when an invalid/forbidden operation
+ * has been requested on a full stack.
+ */
+class FullStackException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	public FullStackException()
+	{
+		super("Full Stack !!!");
+	}
+
+	public FullStackException(String message)
+	{
+		super(message);
+	}
+}
+
+// EOF
@@ -0,0 +1,20 @@
+/**
+ * Exception thrown when the stack size requested is invalid,
+ * i.e. either negative or greater than the defined MAX_SIZE.
+ */
+class InvalidStackSizeException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	public InvalidStackSizeException()
+	{
+		super("Invalid Stack Size !!!");
+	}
+
+	public InvalidStackSizeException(String message)
+	{
+		super(message);
+	}
+}
+
+// EOF
@@ -0,0 +1,215 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+
+/**
+ * Class ObjectBlockStack
+ * Bounded stack of object references with the operations of BlockStack,
+ * stored unboxed in a plain array: no allocation once constructed.
+ *
+ * GENERATED by BlockStackGenerator from TypedBlockStack.template.
+ * Edit the template and regenerate rather than editing this file.
+ *
+ * Differences from BlockStack: it starts empty, takes any capacity,
+ * stores exactly what is pushed, and is full once every slot is used.
+ * Like BlockStack, it is not thread-safe: callers provide the locking.
+ *
+ * Usage (benchmark): java ObjectBlockStack [operations]
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class ObjectBlockStack<E>
+{
+	/**
+	 * Number of slots
+	 */
+	private final int iSize;
+
+	/**
+	 * Current top of the stack, -1 when empty
+	 */
+	private int iTop = -1;
+
+	/**
+	 * The slots, bottom first
+	 */
+	private final E[] aoStack;
+
+	/**
+	 * @param piSize number of slots, at least 1
+	 * @throws InvalidStackSizeException
+	 */
+	@SuppressWarnings("unchecked")
+	public ObjectBlockStack(final int piSize)
+			throws InvalidStackSizeException
+	{
+		if (piSize < 1)
+			throw new InvalidStackSizeException();
+
+		this.iSize = piSize;
+		this.aoStack = (E[])new Object[piSize];
+	}
+
+	/**
+	 * Picks a value from the top without modifying the stack
+	 * @return top element of the stack
+	 * @throws EmptyStackException
+	 */
+	public E pick()
+			throws EmptyStackException
+	{
+		if (this.isEmpty())
+			throw new EmptyStackException();
+		return this.aoStack[this.iTop];
+	}
+
+	/**
+	 * Returns arbitrary value from the stack array
+	 * @return the element
+	 * @throws OutOfBoundsStackIndexException
+	 */
+	public E getAt(final int piPosition)
+			throws OutOfBoundsStackIndexException
+	{
+		if (piPosition < 0 || piPosition >= this.iSize)
+			throw new OutOfBoundsStackIndexException();
+		return this.aoStack[piPosition];
+	}
+
+	/**
+	 * Standard push operation
+	 * @throws FullStackException
+	 */
+	public void push(final E poBlock)
+			throws FullStackException
+	{
+		if (this.isFull())
+			throw new FullStackException();
+		this.aoStack[++this.iTop] = poBlock;
+	}
+
+	/**
+	 * Standard pop operation
+	 * @return ex-top element of the stack
+	 * @throws EmptyStackException
+	 */
+	public E pop()
+			throws EmptyStackException
+	{
+		if (this.isEmpty())
+			throw new EmptyStackException();
+		E oBlock = this.aoStack[this.iTop];
+		this.aoStack[this.iTop] = null; // Do not keep the popped object reachable
+		this.iTop--;
+		return oBlock;
+	}
+
+	/**
+	 * @return whether or not the stack is empty
+	 */
+	public boolean isEmpty()
+	{
+		return this.iTop == -1;
+	}
+
+	/**
+	 * @return whether or not every slot is in use
+	 */
+	public boolean isFull()
+	{
+		return this.iTop == this.iSize - 1;
+	}
+
+	/*------- Accessor Methods -------*/
+	/**
+	 * @return Index of the element currently on top of the stack
+	 */
+	public int getITop()
+	{
+		return this.iTop;
+	}
+
+	/**
+	 * @return Number of slots of the stack
+	 */
+	public int getISize()
+	{
+		return this.iSize;
+	}
+
+	/**
+	 * Benchmark value for the i-th operation
+	 */
+	private static Object sample(final int piIndex)
+	{
+		return Integer.valueOf(piIndex & 127);   // cached, so never allocated
+	}
+
+	/**
+	 * Times a push/push/pop/pop loop on this stack and on a boxed
+	 * ArrayDeque, and reports the bytes each allocated on the way.
+	 */
+	public static void main(String[] argv)
+	{
+		int iOperations = argv.length > 0 ? Integer.parseInt(argv[0]) : 20000000;
+		com.sun.management.ThreadMXBean oThreads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long lThread = Thread.currentThread().getId();
+
+		try
+		{
+			ObjectBlockStack<Object> oStack = new ObjectBlockStack<Object>(64);
+			ArrayDeque<Object> oBoxed = new ArrayDeque<Object>(64);
+			long lChecksum = 0;
+
+			for (int r = 0; r < 3; r++)   // last round counts, the others warm up
+			{
+				long lBytes = oThreads.getThreadAllocatedBytes(lThread);
+				long lStart = System.nanoTime();
+
+				for (int i = 0; i < iOperations; i += 4)
+				{
+					oStack.push(sample(i));
+					oStack.push(sample(i + 1));
+					lChecksum += oStack.pop() == sample(i + 1) ? 1 : 0;
+					lChecksum += oStack.pop() == sample(i) ? 1 : 0;
+				}
+
+				long lStackNanos = System.nanoTime() - lStart;
+				long lStackBytes = oThreads.getThreadAllocatedBytes(lThread) - lBytes;
+
+				lBytes = oThreads.getThreadAllocatedBytes(lThread);
+				lStart = System.nanoTime();
+
+				for (int i = 0; i < iOperations; i += 4)
+				{
+					oBoxed.push(sample(i));
+					oBoxed.push(sample(i + 1));
+					lChecksum += oBoxed.pop() == sample(i + 1) ? 1 : 0;
+					lChecksum += oBoxed.pop() == sample(i) ? 1 : 0;
+				}
+
+				long lBoxedNanos = System.nanoTime() - lStart;
+				long lBoxedBytes = oThreads.getThreadAllocatedBytes(lThread) - lBytes;
+
+				if (r == 2)
+				{
+					System.out.println(String.format("%-24s %6.2f ns/op  %12d bytes allocated",
+							"ObjectBlockStack", (double)lStackNanos / iOperations, lStackBytes));
+					System.out.println(String.format("%-24s %6.2f ns/op  %12d bytes allocated",
+							"ArrayDeque<Object>", (double)lBoxedNanos / iOperations, lBoxedBytes));
+				}
+			}
+
+			if (lChecksum != 12L * ((iOperations + 3) / 4))
+				throw new IllegalStateException("Popped something else than pushed");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,20 @@
+/**
+ * Exception thrown when the requested index is outside the valid elements of the stack
+ * i.e. either negative or greater than iTop (greater than the top of the stack).
+ */
+class OutOfBoundsStackIndexException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	public OutOfBoundsStackIndexException()
+	{
+		super("Invalid Stack Index !!! (index is a value outside of the current stack size)");
+	}
+
+	public OutOfBoundsStackIndexException(String message)
+	{
+		super(message);
+	}
+}
+
+// EOF
@@ -0,0 +1,353 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class PersistentBlockStack
+ * Block stack whose states are immutable versions. Every push or pop makes
+ * a new version in O(1): versions share every block they have in common,
+ * as a linked list of nodes from the top down. Whoever holds a version holds
+ * the whole stack as it was then, unaffected by later changes.
+ *
+ *  - snapshot() reads the current version: a single pointer read.
+ *  - at(n) returns version n out of a window of the most recent ones,
+ *    without copying anything.
+ *
+ * Writers swap the current version with compare-and-set and retry if another
+ * writer got in first, so the stack is lock-free; readers never wait.
+ *
+ * Unlike BlockStack, a pushed block is stored as given even onto an empty
+ * stack, and a push fails with FullStackException once all slots are in use.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class PersistentBlockStack
+{
+	/**
+	 * Default number of recent versions kept for at()
+	 */
+	public static final int DEFAULT_HISTORY = 64;
+
+	private final int iSize;
+
+	private final AtomicReference<Version> oCurrent;
+
+	/**
+	 * Version n lives in slot n % length until version n + length replaces it
+	 */
+	private final AtomicReferenceArray<Version> aoHistory;
+
+	/**
+	 * Same size and blocks as a default BlockStack, with the default history.
+	 */
+	public PersistentBlockStack()
+	{
+		this(BlockStack.DEFAULT_SIZE, "abcd", DEFAULT_HISTORY);
+	}
+
+	/**
+	 * Empty stack.
+	 * @param piSize number of slots
+	 * @param piHistory number of recent versions retained, at least 1
+	 * @throws InvalidStackSizeException
+	 */
+	public PersistentBlockStack(final int piSize, final int piHistory)
+			throws InvalidStackSizeException
+	{
+		this(checkSize(piSize), "", Math.max(1, piHistory));
+	}
+
+	/**
+	 * @param pstrBlocks initial blocks, bottom first; they make up version 0
+	 */
+	private PersistentBlockStack(final int piSize, final String pstrBlocks, final int piHistory)
+	{
+		Node oTop = null;
+
+		for (int i = 0; i < pstrBlocks.length(); i++)
+			oTop = new Node(pstrBlocks.charAt(i), oTop);
+
+		Version oFirst = new Version(oTop, 0);
+
+		this.iSize = piSize;
+		this.oCurrent = new AtomicReference<Version>(oFirst);
+		this.aoHistory = new AtomicReferenceArray<Version>(piHistory);
+		this.aoHistory.set(0, oFirst);
+	}
+
+	private static int checkSize(final int piSize)
+			throws InvalidStackSizeException
+	{
+		if (piSize < 1)
+			throw new InvalidStackSizeException();
+
+		return piSize;
+	}
+
+	/**
+	 * Standard push operation
+	 * @return the version made by the push
+	 * @throws FullStackException
+	 */
+	public Version push(final char pcBlock)
+			throws FullStackException
+	{
+		while (true)
+		{
+			Version oBefore = this.oCurrent.get();
+
+			if (oBefore.getITop() == this.iSize - 1)
+				throw new FullStackException();
+
+			Version oAfter = new Version(new Node(pcBlock, oBefore.oTop), oBefore.lSequence + 1);
+
+			if (install(oBefore, oAfter))
+				return oAfter;
+		}
+	}
+
+	/**
+	 * Standard pop operation
+	 * @return ex-top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pop()
+			throws EmptyStackException
+	{
+		while (true)
+		{
+			Version oBefore = this.oCurrent.get();
+
+			if (oBefore.oTop == null)
+				throw new EmptyStackException();
+
+			if (install(oBefore, new Version(oBefore.oTop.oBelow, oBefore.lSequence + 1)))
+				return oBefore.oTop.cBlock;
+		}
+	}
+
+	/**
+	 * Picks a value from the top of the current version
+	 * @return top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pick()
+			throws EmptyStackException
+	{
+		return snapshot().pick();
+	}
+
+	/**
+	 * @return Index of the element currently on top of the stack
+	 */
+	public int getITop()
+	{
+		return snapshot().getITop();
+	}
+
+	/**
+	 * @return Number of slots
+	 */
+	public int getISize()
+	{
+		return this.iSize;
+	}
+
+	/**
+	 * @return the current version; it never changes, whatever happens to the stack
+	 */
+	public Version snapshot()
+	{
+		return this.oCurrent.get();
+	}
+
+	/**
+	 * @param plSequence version number, 0 for the initial state
+	 * @return that version, or null if it is not retained anymore (or not made yet)
+	 */
+	public Version at(final long plSequence)
+	{
+		Version oCurrent = this.oCurrent.get();
+
+		if (plSequence == oCurrent.lSequence)
+			return oCurrent;
+		if (plSequence < 0 || plSequence > oCurrent.lSequence)
+			return null;
+
+		Version oVersion = this.aoHistory.get((int)(plSequence % this.aoHistory.length()));
+		return oVersion != null && oVersion.lSequence == plSequence ? oVersion : null;
+	}
+
+	/**
+	 * @return number of the oldest version at() may still return
+	 */
+	public long getOldestRetained()
+	{
+		return Math.max(0, this.oCurrent.get().lSequence - this.aoHistory.length() + 1);
+	}
+
+	/**
+	 * Makes oAfter current if oBefore still is, and records it in the history.
+	 */
+	private boolean install(final Version poBefore, final Version poAfter)
+	{
+		if (!this.oCurrent.compareAndSet(poBefore, poAfter))
+			return false;
+
+		// A reader asking for it before this store finds it as the current version.
+		// A slow writer must not overwrite a newer version sharing the slot, though.
+		int iSlot = (int)(poAfter.lSequence % this.aoHistory.length());
+		Version oOld;
+
+		do
+		{
+			oOld = this.aoHistory.get(iSlot);
+
+			if (oOld != null && oOld.lSequence > poAfter.lSequence)
+				break;
+		}
+		while (!this.aoHistory.compareAndSet(iSlot, oOld, poAfter));
+
+		return true;
+	}
+
+	/**
+	 * Class Node
+	 * A block and everything below it. Shared by every version that has it.
+	 */
+	private static final class Node
+	{
+		final char cBlock;
+		final Node oBelow;
+
+		/**
+		 * Number of blocks from this one down, this one included
+		 */
+		final int iDepth;
+
+		Node(final char pcBlock, final Node poBelow)
+		{
+			this.cBlock = pcBlock;
+			this.oBelow = poBelow;
+			this.iDepth = poBelow == null ? 1 : poBelow.iDepth + 1;
+		}
+	}
+
+	/**
+	 * Class Version
+	 * The stack as it was after a given number of pushes and pops. Immutable.
+	 */
+	public static final class Version
+	{
+		private final Node oTop;
+		private final long lSequence;
+
+		private Version(final Node poTop, final long plSequence)
+		{
+			this.oTop = poTop;
+			this.lSequence = plSequence;
+		}
+
+		/**
+		 * @return number of pushes and pops that led to this version
+		 */
+		public long getSequence()
+		{
+			return this.lSequence;
+		}
+
+		/**
+		 * @return Index of the element on top, -1 if empty
+		 */
+		public int getITop()
+		{
+			return this.oTop == null ? -1 : this.oTop.iDepth - 1;
+		}
+
+		public boolean isEmpty()
+		{
+			return this.oTop == null;
+		}
+
+		/**
+		 * @return top element, char
+		 * @throws EmptyStackException
+		 */
+		public char pick()
+				throws EmptyStackException
+		{
+			if (this.oTop == null)
+				throw new EmptyStackException();
+
+			return this.oTop.cBlock;
+		}
+
+		/**
+		 * Walks down from the top: O(getITop() - piPosition).
+		 * @param piPosition 0 for the bottom block
+		 * @return the element, char
+		 * @throws OutOfBoundsStackIndexException
+		 */
+		public char getAt(final int piPosition)
+				throws OutOfBoundsStackIndexException
+		{
+			if (piPosition < 0 || piPosition > getITop())
+				throw new OutOfBoundsStackIndexException();
+
+			Node oNode = this.oTop;
+			for (int i = getITop(); i > piPosition; i--)
+				oNode = oNode.oBelow;
+
+			return oNode.cBlock;
+		}
+
+		/**
+		 * @return the blocks, bottom first
+		 */
+		public String toString()
+		{
+			char[] acBlocks = new char[getITop() + 1];
+			int i = acBlocks.length;
+
+			for (Node oNode = this.oTop; oNode != null; oNode = oNode.oBelow)
+				acBlocks[--i] = oNode.cBlock;
+
+			return new String(acBlocks);
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		try
+		{
+			PersistentBlockStack oStack = new PersistentBlockStack();
+			Version oStart = oStack.snapshot();
+
+			oStack.pop();
+			oStack.pop();
+			oStack.push('x');
+			oStack.push('y');
+			oStack.pop();
+
+			for (long n = 0; n <= oStack.snapshot().getSequence(); n++)
+				System.out.println("Version #" + n + ": [" + oStack.at(n) + "]");
+
+			System.out.println("Snapshot taken at the start still reads [" + oStart + "], top = " + oStart.pick() + ".");
+
+			for (int i = 0; i < 1000; i++)
+				oStack.push(oStack.pop());
+
+			System.out.println("After 2000 more changes: version #" + oStack.snapshot().getSequence() +
+					", oldest retained #" + oStack.getOldestRetained() + ", version #3 retained: " + (oStack.at(3) != null) + ".");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,476 @@
+import common.SharedSemaphore;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Class SharedBlockStack
+ * Block stack living in a memory-mapped file, shared by every process
+ * (and thread) on the host mapping the same file.
+ *
+ * Layout of the region (8-byte words, native byte order):
+ *
+ *     [0]  magic       MAGIC once initialized; while initializing, the
+ *                      sign bit and the identity of the initializing process
+ *     [8]  size        number of slots
+ *     [16] lock        0 if free, otherwise the identity of the process holding it
+ *     [24] state       version (high 32 bits) | top + 1 (low 32 bits)
+ *     [32] semaphore   a SharedSemaphore, free for the users of the stack
+ *     [40] slots       one char each
+ *
+ * Writers (push/pop) take the lock word with compare-and-set, so they are
+ * atomic across processes; nothing else is needed since the slots and the
+ * state are only written under it. The state word is published last and
+ * carries a version bumped by every write, which lets readers (pick/getAt)
+ * run without the lock: they read the state, the slot, and the state again,
+ * and retry if the version moved. Because the state is always written last,
+ * a process dying in the middle of a push or pop never leaves a torn stack;
+ * its lock is reclaimed by the next writer once it is gone.
+ *
+ * A process is identified by its PID along with (31 bits of) its start time,
+ * so a PID reused by a newer process does not pass for the dead holder.
+ * Likewise, if the process initializing the region dies before it is done,
+ * the next one to map it takes over; if it merely hangs, the others give up
+ * with an IOException after INIT_TIMEOUT_MS.
+ *
+ * Semantics are those of BlockStack (same initial blocks, a block pushed onto
+ * an empty stack becomes 'a'), except that a push onto a full stack fails
+ * cleanly with FullStackException instead of running past the array.
+ *
+ * Usage: java SharedBlockStack file (pick | pop | push c | dump | bench n)
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class SharedBlockStack
+{
+	private static final VarHandle LONGS =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final long MAGIC = 0x426C6B5374616B31L;   // "BlkStak1"
+	private static final long INITIALIZING = Long.MIN_VALUE;   // | identity of the initializer
+
+	/*
+	 * Offsets within the region
+	 */
+	private static final int OFF_MAGIC = 0;
+	private static final int OFF_SIZE = 8;
+	private static final int OFF_LOCK = 16;
+	private static final int OFF_STATE = 24;
+	private static final int OFF_SEMAPHORE = 32;
+	private static final int OFF_SLOTS = 40;
+
+	/**
+	 * Spins on a busy lock between checks whether its holder is still alive
+	 */
+	private static final int SPINS_BEFORE_OWNER_CHECK = 1 << 20;
+
+	/**
+	 * Longest wait for a live process to finish initializing the region
+	 */
+	private static final long INIT_TIMEOUT_MS = 10000;
+
+	private static final long MY_PID = ProcessHandle.current().pid();
+	private static final long MY_IDENTITY = identity(ProcessHandle.current());
+
+	private final MappedByteBuffer oRegion;
+	private final int iSize;
+	private final SharedSemaphore oSemaphore;
+
+	/**
+	 * Maps (and creates and initializes, if needed) a shared stack of the default size.
+	 */
+	public SharedBlockStack(final Path poFile)
+			throws IOException, InvalidStackSizeException
+	{
+		this(poFile, BlockStack.DEFAULT_SIZE);
+	}
+
+	/**
+	 * Maps a shared stack, creating and initializing it if nobody has yet.
+	 * @param piSize number of slots; ignored if the stack already exists
+	 */
+	public SharedBlockStack(final Path poFile, final int piSize)
+			throws IOException, InvalidStackSizeException
+	{
+		if (piSize < 2 || piSize > BlockStack.MAX_SIZE)
+			throw new InvalidStackSizeException();
+
+		try (FileChannel oChannel = FileChannel.open(poFile,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			this.oRegion = oChannel.map(FileChannel.MapMode.READ_WRITE, 0, OFF_SLOTS + 2L * BlockStack.MAX_SIZE);
+		}
+
+		// Exactly one process wins the right to initialize; the others wait for it.
+		if (claimInitialization())
+		{
+			LONGS.set(this.oRegion, OFF_SIZE, (long)piSize);
+
+			// Same initial contents as BlockStack: letters, and 2 free blocks
+			for (int i = 0; i < piSize; i++)
+				this.oRegion.putChar(OFF_SLOTS + 2 * i, i < piSize - 2 ? (char)('a' + i) : '*');
+
+			LONGS.set(this.oRegion, OFF_LOCK, 0L);
+			LONGS.set(this.oRegion, OFF_STATE, (long)(piSize - 2));
+			new SharedSemaphore(this.oRegion, OFF_SEMAPHORE).initialize(1);
+			LONGS.setVolatile(this.oRegion, OFF_MAGIC, MAGIC);
+		}
+
+		this.iSize = (int)(long)LONGS.getVolatile(this.oRegion, OFF_SIZE);
+		this.oSemaphore = new SharedSemaphore(this.oRegion, OFF_SEMAPHORE);
+	}
+
+	/**
+	 * Standard push operation
+	 * @throws FullStackException
+	 */
+	public void push(final char pcBlock)
+			throws FullStackException
+	{
+		lock();
+		try
+		{
+			long lState = (long)LONGS.get(this.oRegion, OFF_STATE);
+			int iTop = top(lState);
+
+			if (iTop == this.iSize - 1)
+				throw new FullStackException();
+
+			this.oRegion.putChar(OFF_SLOTS + 2 * (iTop + 1), iTop == -1 ? 'a' : pcBlock);
+			publish(lState, iTop + 1);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	/**
+	 * Standard pop operation
+	 * @return ex-top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pop()
+			throws EmptyStackException
+	{
+		lock();
+		try
+		{
+			long lState = (long)LONGS.get(this.oRegion, OFF_STATE);
+			int iTop = top(lState);
+
+			if (iTop == -1)
+				throw new EmptyStackException();
+
+			char cBlock = this.oRegion.getChar(OFF_SLOTS + 2 * iTop);
+			publish(lState, iTop - 1);
+
+			// Readers of the old state still read this slot: the '*' must not
+			// become visible before the new state, or they would return it.
+			VarHandle.storeStoreFence();
+			this.oRegion.putChar(OFF_SLOTS + 2 * iTop, '*'); // Leave prev. value undefined
+
+			return cBlock;
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	/**
+	 * Picks a value from the top without modifying the stack. Lock-free.
+	 * @return top element of the stack, char
+	 * @throws EmptyStackException
+	 */
+	public char pick()
+			throws EmptyStackException
+	{
+		while (true)
+		{
+			long lState = (long)LONGS.getAcquire(this.oRegion, OFF_STATE);
+			int iTop = top(lState);
+
+			if (iTop == -1)
+				throw new EmptyStackException();
+
+			char cBlock = this.oRegion.getChar(OFF_SLOTS + 2 * iTop);
+
+			VarHandle.loadLoadFence();
+			if ((long)LONGS.getAcquire(this.oRegion, OFF_STATE) == lState)
+				return cBlock;
+		}
+	}
+
+	/**
+	 * Returns arbitrary value from the stack array. Lock-free.
+	 * @return the element, char
+	 * @throws OutOfBoundsStackIndexException
+	 */
+	public char getAt(final int piPosition)
+			throws OutOfBoundsStackIndexException
+	{
+		if (piPosition < 0 || piPosition >= this.iSize)
+			throw new OutOfBoundsStackIndexException();
+
+		while (true)
+		{
+			long lState = (long)LONGS.getAcquire(this.oRegion, OFF_STATE);
+			char cBlock = this.oRegion.getChar(OFF_SLOTS + 2 * piPosition);
+
+			VarHandle.loadLoadFence();
+			if ((long)LONGS.getAcquire(this.oRegion, OFF_STATE) == lState)
+				return cBlock;
+		}
+	}
+
+	/**
+	 * @return Index of the element currently on top of the stack
+	 */
+	public int getITop()
+	{
+		return top((long)LONGS.getAcquire(this.oRegion, OFF_STATE));
+	}
+
+	/**
+	 * @return number of writes (pushes and pops) ever made, modulo 2^32
+	 */
+	public int getVersion()
+	{
+		return (int)((long)LONGS.getAcquire(this.oRegion, OFF_STATE) >>> 32);
+	}
+
+	/**
+	 * @return Current size of the stack
+	 */
+	public int getISize()
+	{
+		return this.iSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return getITop() == -1;
+	}
+
+	public boolean isFull()
+	{
+		return getITop() == this.iSize - 1;
+	}
+
+	/**
+	 * @return a semaphore stored in the same region, initialized to 1,
+	 * for blocking waits shared by all the processes using the stack
+	 */
+	public SharedSemaphore getSemaphore()
+	{
+		return this.oSemaphore;
+	}
+
+	/**
+	 * @return live part of the stack, bottom first; consistent even while others write
+	 */
+	public String dump()
+	{
+		while (true)
+		{
+			long lState = (long)LONGS.getAcquire(this.oRegion, OFF_STATE);
+			char[] acLive = new char[top(lState) + 1];
+
+			for (int i = 0; i < acLive.length; i++)
+				acLive[i] = this.oRegion.getChar(OFF_SLOTS + 2 * i);
+
+			VarHandle.loadLoadFence();
+			if ((long)LONGS.getAcquire(this.oRegion, OFF_STATE) == lState)
+				return new String(acLive);
+		}
+	}
+
+	private static int top(final long plState)
+	{
+		return (int)plState - 1;
+	}
+
+	/**
+	 * Stores the new top along with the next version. Must hold the lock.
+	 */
+	private void publish(final long plOldState, final int piNewTop)
+	{
+		long lVersion = (plOldState >>> 32) + 1;
+		LONGS.setRelease(this.oRegion, OFF_STATE, (lVersion << 32) | ((piNewTop + 1) & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Waits until the region is initialized.
+	 * @return true if the caller is to initialize it: nobody had started,
+	 * or the process that had has died
+	 * @throws IOException if a live process has been initializing for too long
+	 */
+	private boolean claimInitialization()
+			throws IOException
+	{
+		long lDeadline = System.currentTimeMillis() + INIT_TIMEOUT_MS;
+		int iSpins = 0;
+
+		while (true)
+		{
+			long lMagic = (long)LONGS.getVolatile(this.oRegion, OFF_MAGIC);
+
+			if (lMagic == MAGIC)
+				return false;
+
+			if (lMagic == 0L || (++iSpins % 1024 == 0 && !isAlive(lMagic & ~INITIALIZING)))
+			{
+				if (LONGS.compareAndSet(this.oRegion, OFF_MAGIC, lMagic, INITIALIZING | MY_IDENTITY))
+					return true;
+			}
+			else if ((lMagic & INITIALIZING) == 0)
+			{
+				throw new IOException("Not a SharedBlockStack region (magic " + Long.toHexString(lMagic) + ")");
+			}
+			else if (System.currentTimeMillis() > lDeadline)
+			{
+				throw new IOException("Region still being initialized after " + INIT_TIMEOUT_MS + " ms by PID " + (int)lMagic);
+			}
+			else
+			{
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * @return PID in the low 32 bits, 31 bits of the start time above, 0 there if unknown
+	 */
+	private static long identity(final ProcessHandle poProcess)
+	{
+		Optional<Instant> oStarted = poProcess.info().startInstant();
+		long lStarted = oStarted.isPresent() ? oStarted.get().toEpochMilli() : 0L;
+
+		return ((lStarted & 0x7FFFFFFFL) << 32) | (poProcess.pid() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return false if no process with this identity runs any more, even if its PID was reused
+	 */
+	private static boolean isAlive(final long plIdentity)
+	{
+		Optional<ProcessHandle> oProcess = ProcessHandle.of(plIdentity & 0xFFFFFFFFL);
+
+		if (!oProcess.isPresent() || !oProcess.get().isAlive())
+			return false;
+
+		long lIdentity = identity(oProcess.get());
+
+		// Start time unknown on either side: the PID is all there is to go by.
+		return (plIdentity >>> 32) == 0 || (lIdentity >>> 32) == 0 || lIdentity == plIdentity;
+	}
+
+	/**
+	 * Takes the writers' lock, reclaiming it from a holder process that has died.
+	 */
+	private void lock()
+	{
+		int iSpins = 0;
+
+		while (true)
+		{
+			long lHolder = (long)LONGS.getVolatile(this.oRegion, OFF_LOCK);
+
+			if (lHolder == 0)
+			{
+				if (LONGS.compareAndSet(this.oRegion, OFF_LOCK, 0L, MY_IDENTITY))
+					return;
+			}
+			else if (++iSpins % SPINS_BEFORE_OWNER_CHECK == 0)
+			{
+				if (lHolder != MY_IDENTITY && !isAlive(lHolder))
+					LONGS.compareAndSet(this.oRegion, OFF_LOCK, lHolder, 0L);
+			}
+			else if (iSpins % 64 == 0)
+			{
+				Thread.yield();
+			}
+			else
+			{
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	private void unlock()
+	{
+		LONGS.setRelease(this.oRegion, OFF_LOCK, 0L);
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		if (argv.length < 2)
+		{
+			System.err.println("Usage: java SharedBlockStack file (pick | pop | push c | dump | bench n)");
+			System.exit(2);
+		}
+
+		try
+		{
+			SharedBlockStack oStack = new SharedBlockStack(Paths.get(argv[0]));
+			String strCommand = argv[1];
+
+			if (strCommand.equals("pick"))
+				System.out.println(oStack.pick());
+			else if (strCommand.equals("pop"))
+				System.out.println(oStack.pop());
+			else if (strCommand.equals("push"))
+				oStack.push(argv[2].charAt(0));
+			else if (strCommand.equals("dump"))
+				System.out.println("[" + oStack.dump() + "] top = " + oStack.getITop() + ", version = " + oStack.getVersion());
+			else if (strCommand.equals("bench"))
+			{
+				// Run this in several processes at once to measure cross-process contention.
+				int iPairs = Integer.parseInt(argv[2]);
+				long lMisses = 0;
+				long lStart = System.nanoTime();
+
+				for (int i = 0; i < iPairs; i++)
+				{
+					try
+					{
+						oStack.push(oStack.pop());
+					}
+					catch(EmptyStackException e)
+					{
+						lMisses++;
+					}
+				}
+
+				long lNanos = System.nanoTime() - lStart;
+				System.out.println(String.format("PID %d: %d pop/push pairs, %.1f ns per operation, %d empty-stack misses",
+						MY_PID, iPairs, lNanos / (2.0 * iPairs), lMisses));
+			}
+			else
+			{
+				System.err.println("Unknown command: " + strCommand);
+				System.exit(2);
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
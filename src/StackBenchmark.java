@@ -0,0 +1,445 @@
+import common.Semaphore;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class StackBenchmark
+ * Hammers every block stack variant with the same AcquireBlock/ReleaseBlock
+ * style workload and reports throughput, so alternatives can be compared
+ * against the mutex-protected BlockStack used by BlockManager.
+ *
+ * Usage: java StackBenchmark [threads] [pairs per thread] [rounds]
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class StackBenchmark
+{
+	/**
+	 * Defaults for the command line arguments
+	 */
+	private static final int DEFAULT_THREADS = 8;
+	private static final int DEFAULT_PAIRS = 200000;
+	private static final int DEFAULT_ROUNDS = 5;
+
+	/**
+	 * Number of blocks on a default BlockStack
+	 */
+	static final int INITIAL_DEPTH = 4;
+
+	/**
+	 * What a benchmark drives: acquire a block, give one back.
+	 */
+	interface Target
+	{
+		/**
+		 * Takes a block, like AcquireBlock does.
+		 * @throws EmptyStackException if there is nothing to take
+		 */
+		char acquire() throws Exception;
+
+		/**
+		 * Returns a block, like ReleaseBlock does.
+		 * @throws FullStackException if there is no room for it
+		 */
+		void release(char pcBlock) throws Exception;
+
+		/**
+		 * Final contents, bottom first. Only called once all workers are done;
+		 * a target may release whatever resources it holds (threads, sockets) here.
+		 */
+		String dump() throws Exception;
+	}
+
+	/**
+	 * Builds a fresh instance of a target for every round.
+	 */
+	interface TargetFactory
+	{
+		Target create() throws Exception;
+	}
+
+	/**
+	 * @return every benchmarked variant, keyed by name, in reporting order
+	 */
+	static Map<String, TargetFactory> targets()
+	{
+		Map<String, TargetFactory> oTargets = new LinkedHashMap<String, TargetFactory>();
+
+		oTargets.put("mutex", new TargetFactory()
+		{
+			public Target create()
+			{
+				return new MutexTarget(quietStack());
+			}
+		});
+
+		oTargets.put("flat-combining", new TargetFactory()
+		{
+			public Target create()
+			{
+				final FlatCombiningBlockStack oStack = new FlatCombiningBlockStack(quietStack());
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oStack.pop(); }
+					public void release(char pcBlock) throws Exception { oStack.push(pcBlock); }
+					public String dump() throws Exception { return dumpStack(oStack.getStack()); }
+				};
+			}
+		});
+
+		oTargets.put("actor", new TargetFactory()
+		{
+			public Target create()
+			{
+				final BlockStackOwner oOwner = new BlockStackOwner(quietStack());
+				final ThreadLocal<BlockStackOwner.Mailbox> oMailbox = new ThreadLocal<BlockStackOwner.Mailbox>()
+				{
+					protected BlockStackOwner.Mailbox initialValue()
+					{
+						return oOwner.openMailbox();
+					}
+				};
+
+				oOwner.start();
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oMailbox.get().pop(); }
+					public void release(char pcBlock) throws Exception { oMailbox.get().push(pcBlock); }
+					public String dump() throws Exception
+					{
+						oOwner.shutdown();
+						return dumpStack(oOwner.getStack());
+					}
+				};
+			}
+		});
+
+		oTargets.put("nio-localhost", new TargetFactory()
+		{
+			public Target create() throws Exception
+			{
+				final BlockServer oServer = new BlockServer(quietStack(), new InetSocketAddress("localhost", 0));
+				final List<BlockClient> oClients = new ArrayList<BlockClient>();
+				final ThreadLocal<BlockClient> oClient = new ThreadLocal<BlockClient>()
+				{
+					protected BlockClient initialValue()
+					{
+						try
+						{
+							BlockClient oNew = new BlockClient("localhost", oServer.getPort());
+
+							synchronized (oClients)
+							{
+								oClients.add(oNew);
+							}
+							return oNew;
+						}
+						catch(java.io.IOException e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+				};
+
+				oServer.start();
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oClient.get().pop(); }
+					public void release(char pcBlock) throws Exception { oClient.get().push(pcBlock); }
+					public String dump() throws Exception
+					{
+						for (BlockClient oOpen : oClients)
+							oOpen.close();
+						oServer.close();
+						return dumpStack(oServer.getStack());
+					}
+				};
+			}
+		});
+
+		oTargets.put("mpmc-queue", new TargetFactory()
+		{
+			public Target create()
+			{
+				final BlockQueue oQueue = new BlockQueue();
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oQueue.pop(); }
+					public void release(char pcBlock) throws Exception { oQueue.push(pcBlock); }
+					// dump() lists the head first; the tail is position 0.
+					public String dump() throws Exception { return new StringBuilder(oQueue.dump()).reverse().toString(); }
+				};
+			}
+		});
+
+		oTargets.put("persistent-cas", new TargetFactory()
+		{
+			public Target create()
+			{
+				final PersistentBlockStack oStack = new PersistentBlockStack();
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oStack.pop(); }
+					public void release(char pcBlock) throws Exception { oStack.push(pcBlock); }
+					public String dump() throws Exception { return oStack.snapshot().toString(); }
+				};
+			}
+		});
+
+		oTargets.put("shared-memory", new TargetFactory()
+		{
+			public Target create() throws Exception
+			{
+				final Path oFile = Files.createTempFile("blockstack", ".shm");
+				Files.delete(oFile);   // a fresh, zeroed region gets initialized by us
+
+				final SharedBlockStack oStack = new SharedBlockStack(oFile);
+
+				return new Target()
+				{
+					public char acquire() throws Exception { return oStack.pop(); }
+					public void release(char pcBlock) throws Exception { oStack.push(pcBlock); }
+					public String dump() throws Exception
+					{
+						Files.deleteIfExists(oFile);
+						return oStack.dump();
+					}
+				};
+			}
+		});
+
+		return oTargets;
+	}
+
+	/**
+	 * Prefix of a "mutex" target whose lock is another common.Semaphore
+	 * implementation, named by its class, e.g. "mutex:common.Semaphore"
+	 */
+	static final String LOCK_TARGET_PREFIX = "mutex:";
+
+	/**
+	 * @param pstrClass a subclass of common.Semaphore with a constructor taking the initial value
+	 * @return a target like "mutex", locking with a new instance of that class (initial value 1)
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException if the class has no such constructor
+	 */
+	static TargetFactory lockTarget(final String pstrClass)
+			throws ClassNotFoundException, NoSuchMethodException
+	{
+		final java.lang.reflect.Constructor<? extends Semaphore> oConstructor =
+				Class.forName(pstrClass).asSubclass(Semaphore.class).getConstructor(int.class);
+
+		return new TargetFactory()
+		{
+			public Target create() throws Exception
+			{
+				return new MutexTarget(quietStack(), oConstructor.newInstance(1));
+			}
+		};
+	}
+
+	/**
+	 * @return true if the named target hands out the oldest block (a queue)
+	 * rather than the last one released (a stack)
+	 */
+	static boolean isFifo(final String pstrTarget)
+	{
+		return "mpmc-queue".equals(pstrTarget);
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		int iThreads = argv.length > 0 ? Integer.parseInt(argv[0]) : DEFAULT_THREADS;
+		int iPairs = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_PAIRS;
+		int iRounds = argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_ROUNDS;
+
+		System.out.println("StackBenchmark: " + iThreads + " threads x " + iPairs +
+				" acquire/release pairs, best of " + iRounds + " rounds.");
+
+		try
+		{
+			for (Map.Entry<String, TargetFactory> oEntry : targets().entrySet())
+			{
+				long lBestNanos = Long.MAX_VALUE;
+				long lMisses = 0;
+
+				for (int r = 0; r < iRounds; r++)
+				{
+					Target oTarget = oEntry.getValue().create();
+					long[] alMisses = new long[1];
+					long lNanos = runRound(oTarget, iThreads, iPairs, alMisses);
+
+					// Acquire/release pairs leave as many blocks as there were, whatever the interleaving.
+					// (Not the same letters: BlockStack turns a block pushed onto an empty stack into 'a'.)
+					String strFinal = oTarget.dump();
+					if (strFinal.length() != INITIAL_DEPTH)
+						throw new IllegalStateException(oEntry.getKey() + " ended with [" + strFinal + "]");
+
+					if (lNanos < lBestNanos)
+					{
+						lBestNanos = lNanos;
+						lMisses = alMisses[0];
+					}
+				}
+
+				double dOpsPerSec = 2.0 * iThreads * iPairs / (lBestNanos / 1e9);
+
+				System.out.println
+				(
+					String.format("%-20s %12.0f ops/s  %8.2f ms  (%d empty-stack misses)",
+							oEntry.getKey(), dOpsPerSec, lBestNanos / 1e6, lMisses)
+				);
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs one round and returns its wall time in nanoseconds.
+	 * @param palMisses receives the number of acquires that found the stack empty
+	 */
+	static long runRound(final Target poTarget, final int piThreads, final int piPairs, final long[] palMisses)
+			throws InterruptedException
+	{
+		final Semaphore oStart = new Semaphore(0);
+		final long[] alMisses = new long[piThreads];
+		Thread[] aoWorkers = new Thread[piThreads];
+
+		for (int t = 0; t < piThreads; t++)
+		{
+			final int iIndex = t;
+
+			aoWorkers[t] = new Thread()
+			{
+				public void run()
+				{
+					oStart.P();
+					oStart.V();
+
+					for (int i = 0; i < piPairs; i++)
+					{
+						try
+						{
+							poTarget.release(poTarget.acquire());
+						}
+						catch(EmptyStackException e)
+						{
+							alMisses[iIndex]++;
+						}
+						catch(Exception e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+			aoWorkers[t].start();
+		}
+
+		long lStart = System.nanoTime();
+		oStart.V();
+
+		for (int t = 0; t < piThreads; t++)
+			aoWorkers[t].join();
+
+		long lNanos = System.nanoTime() - lStart;
+
+		for (int t = 0; t < piThreads; t++)
+			palMisses[0] += alMisses[t];
+
+		return lNanos;
+	}
+
+	/**
+	 * @return a default BlockStack that does not print on every operation
+	 */
+	static BlockStack quietStack()
+	{
+		BlockStack oStack = new BlockStack();
+		oStack.setVerbose(false);
+		return oStack;
+	}
+
+	/**
+	 * @return the live part of the stack, bottom first
+	 */
+	static String dumpStack(final BlockStack poStack)
+	{
+		return new String(poStack.getAcStack(), 0, poStack.getITop() + 1);
+	}
+
+	/**
+	 * The baseline: a BlockStack guarded by one Semaphore, as in BlockManager.
+	 */
+	static class MutexTarget implements Target
+	{
+		private final BlockStack oStack;
+		private final Semaphore oMutex;
+
+		MutexTarget(final BlockStack poStack)
+		{
+			this(poStack, new Semaphore(1));
+		}
+
+		/**
+		 * @param poMutex the lock, used with P() and V(); must start with one permit
+		 */
+		MutexTarget(final BlockStack poStack, final Semaphore poMutex)
+		{
+			this.oStack = poStack;
+			this.oMutex = poMutex;
+		}
+
+		public char acquire() throws Exception
+		{
+			this.oMutex.P();
+			try
+			{
+				return this.oStack.pop();
+			}
+			finally
+			{
+				this.oMutex.V();
+			}
+		}
+
+		public void release(char pcBlock) throws Exception
+		{
+			this.oMutex.P();
+			try
+			{
+				this.oStack.push(pcBlock);
+			}
+			finally
+			{
+				this.oMutex.V();
+			}
+		}
+
+		public String dump()
+		{
+			return dumpStack(this.oStack);
+		}
+	}
+}
+
+// EOF
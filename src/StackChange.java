@@ -0,0 +1,120 @@
+/**
+ * Class StackChange
+ * One event of a BlockStack change stream: a push, a pop,
+ * or a snapshot of the whole stack to (re)start from.
+ *
+ * Every push and pop gets the next sequence number. A snapshot carries the
+ * sequence number of the last change it already includes, so a subscriber
+ * applying deltas on top of it knows none is missing or counted twice.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+final class StackChange
+{
+	/*
+	 * Kinds of changes
+	 */
+	public static final int SNAPSHOT = 0;
+	public static final int PUSH = 1;
+	public static final int POP = 2;
+
+	private final int iKind;
+	private final long lSequence;
+	private final int iPosition;
+	private final char cValue;
+	private final char[] acSnapshot;
+
+	private StackChange(final int piKind, final long plSequence, final int piPosition,
+			final char pcValue, final char[] pacSnapshot)
+	{
+		this.iKind = piKind;
+		this.lSequence = plSequence;
+		this.iPosition = piPosition;
+		this.cValue = pcValue;
+		this.acSnapshot = pacSnapshot;
+	}
+
+	/**
+	 * @param piPosition index the block was pushed to (the new top)
+	 */
+	static StackChange push(final long plSequence, final int piPosition, final char pcBlock)
+	{
+		return new StackChange(PUSH, plSequence, piPosition, pcBlock, null);
+	}
+
+	/**
+	 * @param piPosition index the block was popped from (the old top)
+	 */
+	static StackChange pop(final long plSequence, final int piPosition, final char pcBlock)
+	{
+		return new StackChange(POP, plSequence, piPosition, pcBlock, null);
+	}
+
+	/**
+	 * @param pacLive live part of the stack, bottom first; not copied
+	 */
+	static StackChange snapshot(final long plSequence, final char[] pacLive)
+	{
+		return new StackChange(SNAPSHOT, plSequence, pacLive.length - 1, '\0', pacLive);
+	}
+
+	/*------- Accessor Methods -------*/
+
+	/**
+	 * @return SNAPSHOT, PUSH or POP
+	 */
+	public int getKind()
+	{
+		return this.iKind;
+	}
+
+	/**
+	 * @return sequence number of this change (of the last change included, for a snapshot)
+	 */
+	public long getSequence()
+	{
+		return this.lSequence;
+	}
+
+	/**
+	 * @return position pushed to or popped from; top of the stack for a snapshot
+	 */
+	public int getPosition()
+	{
+		return this.iPosition;
+	}
+
+	/**
+	 * @return block pushed or popped
+	 */
+	public char getValue()
+	{
+		return this.cValue;
+	}
+
+	/**
+	 * @return live part of the stack, bottom first (snapshots only, null otherwise)
+	 */
+	public char[] getSnapshot()
+	{
+		return this.acSnapshot == null ? null : this.acSnapshot.clone();
+	}
+
+	public String toString()
+	{
+		switch (this.iKind)
+		{
+			case PUSH:
+				return "#" + this.lSequence + " push " + this.cValue + " to " + this.iPosition;
+
+			case POP:
+				return "#" + this.lSequence + " pop " + this.cValue + " from " + this.iPosition;
+
+			default:
+				return "#" + this.lSequence + " snapshot [" + new String(this.acSnapshot) + "]";
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,301 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+/**
+ * Class StackChangePublisher
+ * Publishes the changes made to a BlockStack as a Flow stream of StackChange events.
+ *
+ * A new subscriber first gets a snapshot of the stack, then every push and pop
+ * after it. Backpressure is per subscriber: events beyond what it has requested
+ * are buffered, up to a bound. A subscriber that falls further behind than that
+ * does not hold up the stack; its backlog is replaced by a fresh snapshot,
+ * after which deltas resume.
+ *
+ * Events are delivered by whichever thread makes them deliverable: the thread
+ * changing the stack, or the subscriber's own thread calling request().
+ * onNext() should therefore be cheap. Calls to one subscriber never overlap.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class StackChangePublisher implements Flow.Publisher<StackChange>
+{
+	/**
+	 * Default number of undelivered events kept per subscriber
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64;
+
+	/**
+	 * Max undelivered events per subscriber before it gets resynchronized with a snapshot
+	 */
+	private final int iBufferSize;
+
+	/**
+	 * Copy of the stack's live blocks, kept up to date from the changes
+	 * themselves, so snapshots always agree with the sequence numbers.
+	 * Guarded by this.
+	 */
+	private char[] acShadow;
+	private int iShadowTop;
+	private long lSequence = 0;
+
+	private final List<Subscription> oSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * @param pacStack the stack's array; must not change while the constructor runs
+	 * @param piTop index of the current top
+	 */
+	StackChangePublisher(final char[] pacStack, final int piTop, final int piBufferSize)
+	{
+		this.acShadow = pacStack.clone();
+		this.iShadowTop = piTop;
+		this.iBufferSize = piBufferSize;
+	}
+
+	public void subscribe(final Flow.Subscriber<? super StackChange> poSubscriber)
+	{
+		if (poSubscriber == null)
+			throw new NullPointerException("Subscriber must not be null");
+
+		Subscription oSubscription = new Subscription(poSubscriber);
+
+		// Snapshot and registration happen together, so no change falls in between.
+		synchronized (this)
+		{
+			oSubscription.enqueue(snapshot());
+			this.oSubscriptions.add(oSubscription);
+		}
+
+		poSubscriber.onSubscribe(oSubscription);
+		oSubscription.drain();
+	}
+
+	/**
+	 * Records a push. Called by BlockStack.push() after the block is stored.
+	 */
+	void pushed(final int piPosition, final char pcBlock)
+	{
+		synchronized (this)
+		{
+			if (piPosition >= this.acShadow.length)
+				this.acShadow = Arrays.copyOf(this.acShadow, piPosition + 1);
+
+			this.acShadow[piPosition] = pcBlock;
+			this.iShadowTop = piPosition;
+			enqueueAll(StackChange.push(++this.lSequence, piPosition, pcBlock));
+		}
+
+		drainAll();
+	}
+
+	/**
+	 * Records a pop. Called by BlockStack.pop() after the block is removed.
+	 */
+	void popped(final int piPosition, final char pcBlock)
+	{
+		synchronized (this)
+		{
+			this.iShadowTop = piPosition - 1;
+			enqueueAll(StackChange.pop(++this.lSequence, piPosition, pcBlock));
+		}
+
+		drainAll();
+	}
+
+	/**
+	 * Records a wholesale change of the live blocks (a rolled back transaction):
+	 * every subscriber gets a snapshot, which supersedes its backlog.
+	 */
+	void restored(final char[] pacStack, final int piTop)
+	{
+		synchronized (this)
+		{
+			this.acShadow = pacStack.clone();
+			this.iShadowTop = piTop;
+			++this.lSequence;
+
+			for (Subscription oSubscription : this.oSubscriptions)
+				oSubscription.resync(snapshot());
+		}
+
+		drainAll();
+	}
+
+	/**
+	 * @return sequence number of the last change recorded
+	 */
+	public synchronized long getSequence()
+	{
+		return this.lSequence;
+	}
+
+	/**
+	 * @return number of active subscriptions
+	 */
+	public int getSubscriberCount()
+	{
+		return this.oSubscriptions.size();
+	}
+
+	/**
+	 * Must be called holding this.
+	 */
+	private StackChange snapshot()
+	{
+		return StackChange.snapshot(this.lSequence, Arrays.copyOf(this.acShadow, this.iShadowTop + 1));
+	}
+
+	/**
+	 * Must be called holding this.
+	 */
+	private void enqueueAll(final StackChange poChange)
+	{
+		for (Subscription oSubscription : this.oSubscriptions)
+			if (!oSubscription.enqueue(poChange))
+				oSubscription.resync(snapshot());
+	}
+
+	private void drainAll()
+	{
+		for (Subscription oSubscription : this.oSubscriptions)
+			oSubscription.drain();
+	}
+
+	/**
+	 * State of one subscriber. Guarded by itself.
+	 */
+	private final class Subscription implements Flow.Subscription
+	{
+		private final Flow.Subscriber<? super StackChange> oSubscriber;
+		private final ArrayDeque<StackChange> oBuffer = new ArrayDeque<StackChange>();
+		private long lDemand = 0;
+		private boolean bDraining = false;
+		private boolean bCancelled = false;
+		private Throwable oError = null;
+
+		Subscription(final Flow.Subscriber<? super StackChange> poSubscriber)
+		{
+			this.oSubscriber = poSubscriber;
+		}
+
+		/**
+		 * @return false if the buffer is full and the change was not taken
+		 */
+		synchronized boolean enqueue(final StackChange poChange)
+		{
+			if (this.bCancelled)
+				return true;
+			if (this.oBuffer.size() >= iBufferSize)
+				return false;
+
+			this.oBuffer.add(poChange);
+			return true;
+		}
+
+		/**
+		 * Drops the backlog: the snapshot supersedes it.
+		 */
+		synchronized void resync(final StackChange poSnapshot)
+		{
+			this.oBuffer.clear();
+			this.oBuffer.add(poSnapshot);
+		}
+
+		public void request(final long plCount)
+		{
+			synchronized (this)
+			{
+				if (plCount <= 0)
+				{
+					// Rule 3.9 of the reactive streams specification
+					this.oError = new IllegalArgumentException("Non-positive request: " + plCount);
+				}
+				else
+				{
+					this.lDemand += plCount;
+
+					if (this.lDemand < 0) // overflow: unbounded
+						this.lDemand = Long.MAX_VALUE;
+				}
+			}
+
+			drain();
+		}
+
+		public void cancel()
+		{
+			synchronized (this)
+			{
+				this.bCancelled = true;
+				this.oBuffer.clear();
+			}
+
+			oSubscriptions.remove(this);
+		}
+
+		/**
+		 * Delivers as many buffered changes as there is demand for.
+		 * Only one thread at a time delivers; a thread finding another one
+		 * at it leaves, and the other one picks up what it enqueued.
+		 */
+		void drain()
+		{
+			synchronized (this)
+			{
+				if (this.bDraining)
+					return;
+
+				this.bDraining = true;
+			}
+
+			while (true)
+			{
+				StackChange oChange = null;
+				boolean bFailed = false;
+
+				synchronized (this)
+				{
+					if (this.bCancelled)
+					{
+						this.bDraining = false;
+						return;
+					}
+
+					if (this.oError != null)
+					{
+						this.bCancelled = true;
+						this.bDraining = false;
+						this.oBuffer.clear();
+						bFailed = true;
+					}
+					else if (this.lDemand == 0 || this.oBuffer.isEmpty())
+					{
+						this.bDraining = false;
+						return;
+					}
+					else
+					{
+						oChange = this.oBuffer.poll();
+
+						if (this.lDemand != Long.MAX_VALUE)
+							this.lDemand--;
+					}
+				}
+
+				if (bFailed)
+				{
+					oSubscriptions.remove(this);
+					this.oSubscriber.onError(this.oError);
+					return;
+				}
+
+				this.oSubscriber.onNext(oChange);
+			}
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+
+/**
+ * Class StackMirror
+ * Subscriber keeping a local copy of a BlockStack up to date from its change
+ * stream, so that a prober only has work to do when the stack has actually changed.
+ *
+ * Requests changes in small batches (backpressure) and asks for more as it
+ * applies them. Sequence numbers are checked: a gap means changes were dropped
+ * and the mirror waits for the snapshot the publisher sends in that case.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+class StackMirror implements Flow.Subscriber<StackChange>
+{
+	/**
+	 * Changes requested at a time
+	 */
+	private static final int BATCH = 16;
+
+	/**
+	 * The mirrored slots, '*' standing for a free one as in BlockStack
+	 */
+	private final char[] acSlots;
+	private int iTop = -1;
+
+	/**
+	 * Sequence number of the last change applied, -1 before the first snapshot
+	 */
+	private long lSequence = -1;
+
+	/**
+	 * Whether the mirror changed since the last call to render()
+	 */
+	private boolean bChanged = false;
+
+	private Flow.Subscription oSubscription;
+	private int iOutstanding = 0;
+
+	/**
+	 * @param piSize size of the mirrored stack
+	 */
+	StackMirror(final int piSize)
+	{
+		this.acSlots = new char[piSize];
+		Arrays.fill(this.acSlots, '*');
+	}
+
+	public void onSubscribe(final Flow.Subscription poSubscription)
+	{
+		synchronized (this)
+		{
+			this.oSubscription = poSubscription;
+			this.iOutstanding = BATCH;
+		}
+
+		poSubscription.request(BATCH);
+	}
+
+	public void onNext(final StackChange poChange)
+	{
+		Flow.Subscription oRequestMore = null;
+
+		synchronized (this)
+		{
+			apply(poChange);
+
+			if (--this.iOutstanding <= BATCH / 2)
+			{
+				this.iOutstanding += BATCH;
+				oRequestMore = this.oSubscription;
+			}
+		}
+
+		// Outside the monitor: request() may deliver more changes right away.
+		if (oRequestMore != null)
+			oRequestMore.request(BATCH);
+	}
+
+	public void onError(final Throwable poError)
+	{
+		System.err.println("StackMirror: change stream failed: " + poError);
+	}
+
+	public void onComplete()
+	{
+	}
+
+	/**
+	 * Must be called holding this.
+	 */
+	private void apply(final StackChange poChange)
+	{
+		if (poChange.getKind() == StackChange.SNAPSHOT)
+		{
+			char[] acLive = poChange.getSnapshot();
+
+			Arrays.fill(this.acSlots, '*');
+			System.arraycopy(acLive, 0, this.acSlots, 0, Math.min(acLive.length, this.acSlots.length));
+			this.iTop = acLive.length - 1;
+		}
+		else
+		{
+			// A gap in the sequence: deltas were dropped, wait for the resync snapshot.
+			if (this.lSequence < 0 || poChange.getSequence() != this.lSequence + 1)
+				return;
+
+			if (poChange.getKind() == StackChange.PUSH)
+			{
+				this.acSlots[poChange.getPosition()] = poChange.getValue();
+				this.iTop = poChange.getPosition();
+			}
+			else
+			{
+				this.acSlots[poChange.getPosition()] = '*';
+				this.iTop = poChange.getPosition() - 1;
+			}
+		}
+
+		this.lSequence = poChange.getSequence();
+		this.bChanged = true;
+	}
+
+	/**
+	 * @return whether there is something new since the last render()
+	 */
+	public synchronized boolean hasChanged()
+	{
+		return this.bChanged;
+	}
+
+	/**
+	 * Renders the mirror the way CharStackProber prints a stack:
+	 * [s] for an ordinary slot, (s) for the top one. Clears the changed flag.
+	 */
+	public synchronized String render()
+	{
+		StringBuilder oOut = new StringBuilder();
+
+		for (int s = 0; s < this.acSlots.length; s++)
+			oOut.append(s == this.iTop ? "(" : "[").append(this.acSlots[s]).append(s == this.iTop ? ")" : "]");
+
+		this.bChanged = false;
+		return oOut.toString();
+	}
+
+	/**
+	 * @return sequence number of the last change applied
+	 */
+	public synchronized long getSequence()
+	{
+		return this.lSequence;
+	}
+}
+
+// EOF
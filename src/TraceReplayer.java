@@ -0,0 +1,345 @@
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class TraceReplayer
+ * Performs a recorded BlockTrace (see BlockManager, -Dblock.trace=file)
+ * again against the StackBenchmark targets and reports, for each of them,
+ * throughput and per-operation latency of the fastest round, and whether
+ * every round ended in the recorded final state with every acquire getting
+ * the recorded block.
+ *
+ * Every TID of the trace gets its own thread, which performs that TID's
+ * operations. Operations are issued in trace order: each one waits for the
+ * one before it to complete, as in BlockManager where a writer has the
+ * store to itself. So every implementation sees exactly the recorded
+ * sequence and must end up with the same contents. Pacing is either
+ *
+ *  - fast:  every operation as soon as the previous one completes;
+ *  - timed: every operation also waits for its original time from the start.
+ *
+ * Since operations run one at a time, ops/s mostly measures how fast the
+ * replay threads hand the turn to each other, not how the target scales
+ * under contention (that is StackBenchmark's job); latencies are per call.
+ *
+ * A FIFO target (mpmc-queue) hands out other blocks than a stack would, so
+ * only the targets in the order the trace was recorded in (-Dblock.store)
+ * are replayed; others are skipped, even if named.
+ *
+ * Besides the StackBenchmark targets, a target named "mutex:class" is the
+ * "mutex" target locking with another lock implementation: any subclass of
+ * common.Semaphore with a constructor taking the initial value.
+ *
+ * Usage: java TraceReplayer trace-file [fast|timed] [rounds] [target | mutex:class ...]
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class TraceReplayer
+{
+	private static final int DEFAULT_ROUNDS = 5;
+
+	/**
+	 * A timed wait parks until this close to its time, then spins
+	 */
+	private static final long SPIN_NANOS = 50000L;
+
+	private final BlockTrace oTrace;
+	private final boolean bTimed;
+
+	public TraceReplayer(final BlockTrace poTrace, final boolean pbTimed)
+	{
+		this.oTrace = poTrace;
+		this.bTimed = pbTimed;
+	}
+
+	/**
+	 * What one replay of the trace against one target measured.
+	 */
+	static final class Result
+	{
+		long lWallNanos;
+
+		/**
+		 * Latency of every operation, in trace order
+		 */
+		long[] alLatencies;
+
+		/**
+		 * Timed replays: most an operation started after its original time
+		 */
+		long lMaxLagNanos;
+
+		/**
+		 * Operations that threw, and acquires that got another block than recorded
+		 */
+		int iFailures;
+		int iDivergences;
+
+		String strFinal;
+
+		/**
+		 * @return true if the replay did exactly what was recorded
+		 */
+		boolean matches(final BlockTrace poTrace)
+		{
+			return this.strFinal.equals(poTrace.getFinal()) && this.iFailures == 0 && this.iDivergences == 0;
+		}
+	}
+
+	/**
+	 * Replays the whole trace once against the target.
+	 */
+	Result run(final StackBenchmark.Target poTarget)
+			throws Exception
+	{
+		final int iCount = this.oTrace.getSize();
+		final Result oResult = new Result();
+		final AtomicInteger oNext = new AtomicInteger(0);
+		final long[] alLags = new long[iCount];
+		final int[] aiFailures = new int[1];
+		final AtomicReference<Throwable> oAborted = new AtomicReference<Throwable>();
+
+		oResult.alLatencies = new long[iCount];
+
+		// Operation indices of every TID, in trace order
+		Map<Integer, List<Integer>> oByTID = new LinkedHashMap<Integer, List<Integer>>();
+		for (int i = 0; i < iCount; i++)
+		{
+			List<Integer> oOps = oByTID.get(this.oTrace.getTID(i));
+			if (oOps == null)
+				oByTID.put(this.oTrace.getTID(i), oOps = new ArrayList<Integer>());
+			oOps.add(i);
+		}
+
+		final long[] alStart = new long[1];
+		final common.Semaphore oStart = new common.Semaphore(0);
+		List<Thread> oWorkers = new ArrayList<Thread>();
+
+		for (final Map.Entry<Integer, List<Integer>> oEntry : oByTID.entrySet())
+		{
+			Thread oWorker = new Thread("Replay [TID=" + oEntry.getKey() + "]")
+			{
+				public void run()
+				{
+					oStart.P();
+					oStart.V();
+
+					for (int iOp : oEntry.getValue())
+					{
+						// Its turn first, then its time.
+						while (oNext.get() != iOp)
+						{
+							if (oAborted.get() != null)
+								return;
+							Thread.yield();
+						}
+
+						if (bTimed)
+							alLags[iOp] = waitUntil(alStart[0] + oTrace.getNanos(iOp));
+
+						long lBefore = System.nanoTime();
+
+						try
+						{
+							if (oTrace.getOp(iOp) == BlockTrace.ACQUIRE)
+							{
+								if (poTarget.acquire() != oTrace.getValue(iOp))
+									oResult.iDivergences++;
+							}
+							else
+								poTarget.release(oTrace.getValue(iOp));
+						}
+						catch(Exception e)
+						{
+							aiFailures[0]++;
+						}
+						catch(Throwable e)
+						{
+							// Not something to count and go on with: stop the replay.
+							oAborted.compareAndSet(null, e);
+							return;
+						}
+						finally
+						{
+							oResult.alLatencies[iOp] = System.nanoTime() - lBefore;
+
+							// Publishes everything above to the next operation's thread.
+							oNext.set(iOp + 1);
+						}
+					}
+				}
+			};
+			oWorker.start();
+			oWorkers.add(oWorker);
+		}
+
+		alStart[0] = System.nanoTime();
+		oStart.V();
+
+		for (Thread oWorker : oWorkers)
+			oWorker.join();
+
+		if (oAborted.get() != null)
+			throw new Exception("Replay aborted at operation " + (oNext.get() - 1), oAborted.get());
+
+		oResult.lWallNanos = System.nanoTime() - alStart[0];
+		oResult.iFailures = aiFailures[0];
+		oResult.strFinal = poTarget.dump();
+
+		for (long lLag : alLags)
+			oResult.lMaxLagNanos = Math.max(oResult.lMaxLagNanos, lLag);
+
+		return oResult;
+	}
+
+	/**
+	 * @return how late the current thread is for the given time, 0 if on time
+	 */
+	private static long waitUntil(final long plDeadline)
+	{
+		long lLeft;
+
+		while ((lLeft = plDeadline - System.nanoTime()) > 0)
+		{
+			if (lLeft > SPIN_NANOS)
+				LockSupport.parkNanos(lLeft - SPIN_NANOS);
+			else
+				Thread.onSpinWait();
+		}
+
+		return -lLeft;
+	}
+
+	/**
+	 * @return the given percentile of sorted latencies, in microseconds
+	 */
+	private static double percentile(final long[] palSorted, final double pdPercent)
+	{
+		if (palSorted.length == 0)
+			return 0;
+
+		int iIndex = (int)Math.ceil(pdPercent / 100 * palSorted.length) - 1;
+		return palSorted[Math.max(0, iIndex)] / 1e3;
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		if (argv.length < 1)
+		{
+			System.err.println("Usage: java TraceReplayer trace-file [fast|timed] [rounds] [target | mutex:class ...]");
+			System.exit(1);
+		}
+
+		try
+		{
+			BlockTrace oTrace = BlockTrace.read(Paths.get(argv[0]));
+			boolean bTimed = argv.length > 1 && "timed".equals(argv[1]);
+			int iRounds = argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_ROUNDS;
+
+			if (argv.length > 1 && !bTimed && !"fast".equals(argv[1]))
+				throw new IllegalArgumentException("Pacing must be fast or timed: " + argv[1]);
+
+			Map<String, StackBenchmark.TargetFactory> oTargets = StackBenchmark.targets();
+			if (argv.length > 3)
+			{
+				Map<String, StackBenchmark.TargetFactory> oNamed = new LinkedHashMap<String, StackBenchmark.TargetFactory>();
+
+				for (String strName : Arrays.asList(argv).subList(3, argv.length))
+				{
+					if (strName.startsWith(StackBenchmark.LOCK_TARGET_PREFIX))
+						oNamed.put(strName, StackBenchmark.lockTarget(strName.substring(StackBenchmark.LOCK_TARGET_PREFIX.length())));
+					else if (oTargets.containsKey(strName))
+						oNamed.put(strName, oTargets.get(strName));
+					else
+						throw new IllegalArgumentException("Unknown target: " + strName);
+				}
+
+				oTargets = oNamed;
+			}
+
+			System.out.println("TraceReplayer: " + oTrace.getSize() + " operations, " +
+					(oTrace.getSize() == 0 ? 0 : oTrace.getNanos(oTrace.getSize() - 1) / 1000) + " us recorded, " +
+					(bTimed ? "original timing" : "as fast as possible") + ", best of " + iRounds + " rounds.");
+			System.out.println("Recorded: [" + oTrace.getInitial() + "] -> [" + oTrace.getFinal() + "] on a " +
+					(oTrace.getOrder() == BlockTrace.FIFO ? "FIFO" : "LIFO") + " store.");
+			System.out.println("Operations run one at a time: ops/s mostly measures the hand-off between replay threads.");
+
+			// The targets all start like a default BlockStack.
+			if (!oTrace.getInitial().equals("abcd") || oTrace.getISize() != BlockStack.DEFAULT_SIZE)
+				System.out.println("Warning: the trace did not start from a default stack; final states will not match.");
+
+			TraceReplayer oReplayer = new TraceReplayer(oTrace, bTimed);
+			boolean bAllMatch = true;
+
+			for (Map.Entry<String, StackBenchmark.TargetFactory> oEntry : oTargets.entrySet())
+			{
+				if (StackBenchmark.isFifo(oEntry.getKey()) != (oTrace.getOrder() == BlockTrace.FIFO))
+				{
+					System.out.println(String.format("%-24s skipped: %s target, %s trace", oEntry.getKey(),
+							StackBenchmark.isFifo(oEntry.getKey()) ? "FIFO" : "LIFO",
+							oTrace.getOrder() == BlockTrace.FIFO ? "FIFO" : "LIFO"));
+					continue;
+				}
+
+				Result oBest = null;
+				Result oFirstMismatch = null;
+				int iMismatches = 0;
+
+				// Timings come from the fastest round, but every round must replay the trace exactly.
+				for (int r = 0; r < iRounds; r++)
+				{
+					Result oResult = oReplayer.run(oEntry.getValue().create());
+
+					if (!oResult.matches(oTrace))
+					{
+						iMismatches++;
+						if (oFirstMismatch == null)
+							oFirstMismatch = oResult;
+					}
+
+					if (oBest == null || oResult.lWallNanos < oBest.lWallNanos)
+						oBest = oResult;
+				}
+
+				long[] alSorted = oBest.alLatencies.clone();
+				Arrays.sort(alSorted);
+
+				boolean bMatch = iMismatches == 0;
+				bAllMatch &= bMatch;
+
+				System.out.println
+				(
+					String.format("%-24s %12.0f ops/s  p50 %8.2f us  p99 %8.2f us  max %8.2f us%s  %s",
+							oEntry.getKey(), oTrace.getSize() / (oBest.lWallNanos / 1e9),
+							percentile(alSorted, 50), percentile(alSorted, 99), percentile(alSorted, 100),
+							bTimed ? String.format("  lag %8.2f us", oBest.lMaxLagNanos / 1e3) : "",
+							bMatch ? "final [" + oBest.strFinal + "]" :
+								"MISMATCH in " + iMismatches + " of " + iRounds + " rounds, first: final [" +
+								oFirstMismatch.strFinal + "], " + oFirstMismatch.iFailures + " failed, " +
+								oFirstMismatch.iDivergences + " diverged")
+				);
+			}
+
+			if (!bAllMatch)
+				System.exit(1);
+		}
+		catch(Exception e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
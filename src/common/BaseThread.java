@@ -38,6 +38,18 @@ public class BaseThread extends Thread
 	 */
 	private static int siTurn = 1;
 
+	/**
+	 * What turnTestAndSet() spinners wait on, as the StallWatchdog reports it
+	 */
+	private static final StallWatchdog.Subject soTurn = new StallWatchdog.Subject()
+	{
+		public String describeStall()
+		{
+			int iTurn = siTurn;
+			return "turn counter waits for TID " + iTurn + ", " + StallWatchdog.describeTID(iTurn);
+		}
+	};
+
 	/*
 	 * ------------
 	 * Constructors
@@ -160,9 +172,16 @@ public class BaseThread extends Thread
 			else
 				siTurn--;
 
+			if (StallWatchdog.isEnabled())
+				StallWatchdog.done();
+
 			return true;
 		}
 
+		// Callers spin on this: let the watchdog time how long the turn stays put.
+		if (StallWatchdog.isEnabled())
+			StallWatchdog.spinning(soTurn, "turnTestAndSet()", siTurn);
+
 		return false;
 	}
 
@@ -0,0 +1,565 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class PhasePipeline
+ * Generalization of the phase I / phase II choreography to any number of phases.
+ *
+ * A pipeline is an ordered list of phases shared by a fixed number of
+ * participating threads (parties). Every party runs every phase in order by
+ * calling run(). Each phase says how much parallelism it tolerates:
+ *
+ *  - EXCLUSIVE:    one party at a time, under the phase's own lock
+ *                  (or under a lock shared with other phases, e.g. the one of a stack);
+ *  - TURN_ORDERED: one party at a time, in increasing TID order;
+ *  - CONCURRENT:   no restriction at all;
+ *  - DECLARED:     only the exclusion implied by the resources the phase
+ *                  declares it reads and writes, see ResourceScheduler.
+ *
+ * Since every phase has its own lock, different parties can be in different
+ * exclusive phases at the same time, instead of everything going through
+ * one global mutex. A phase may also be preceded by a barrier: nobody
+ * starts it before all parties have finished every phase before it.
+ *
+ * Example, the original BlockManager choreography:
+ *
+ *     new PhasePipeline(10)
+ *         .phase1(Mode.EXCLUSIVE)
+ *         .exclusive("stack access", mutex, body)
+ *         .barrier()
+ *         .phase2(Mode.TURN_ORDERED);
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class PhasePipeline
+{
+	/**
+	 * How much parallelism a phase tolerates
+	 */
+	public enum Mode
+	{
+		EXCLUSIVE,
+		TURN_ORDERED,
+		CONCURRENT,
+		DECLARED
+	}
+
+	/**
+	 * What a phase does for a given party.
+	 */
+	public interface Body
+	{
+		void run(BaseThread poThread) throws Exception;
+	}
+
+	/**
+	 * Body of a DECLARED phase: also tells which resources it needs,
+	 * which may depend on the party (e.g. readers vs. writers of a stack).
+	 */
+	public interface ClaimedBody extends Body
+	{
+		ResourceScheduler.Claim claim(BaseThread poThread);
+	}
+
+	/**
+	 * Number of threads running the pipeline
+	 */
+	private final int iParties;
+
+	/**
+	 * The phases, in order
+	 */
+	private final List<Phase> oPhases = new ArrayList<Phase>();
+
+	/**
+	 * TID of the first thread to go through each turn-ordered phase
+	 */
+	private int iInitialTurn = 1;
+
+	/**
+	 * @param piParties number of threads that will call run(), at least 1
+	 */
+	public PhasePipeline(final int piParties)
+	{
+		if (piParties < 1)
+			throw new IllegalArgumentException("A pipeline needs at least one party: " + piParties);
+
+		this.iParties = piParties;
+	}
+
+	/*
+	 * -----------------------------------
+	 * Declaring phases (before any run())
+	 * -----------------------------------
+	 */
+
+	/**
+	 * Adds a phase that only one party at a time may run, under its own lock.
+	 */
+	public PhasePipeline exclusive(final String pstrName, final Body poBody)
+	{
+		return exclusive(pstrName, new Semaphore(1), poBody);
+	}
+
+	/**
+	 * Adds a phase that only one party at a time may run, under the given lock.
+	 * Sharing a lock between phases (or with code outside of the pipeline)
+	 * makes them mutually exclusive as well.
+	 */
+	public PhasePipeline exclusive(final String pstrName, final Semaphore poLock, final Body poBody)
+	{
+		return add(new Phase(pstrName, Mode.EXCLUSIVE, poLock, poBody));
+	}
+
+	/**
+	 * Adds a phase that parties run one at a time, in increasing TID order.
+	 */
+	public PhasePipeline turnOrdered(final String pstrName, final Body poBody)
+	{
+		return add(new Phase(pstrName, Mode.TURN_ORDERED, null, poBody));
+	}
+
+	/**
+	 * Adds a phase that any number of parties may run at the same time.
+	 */
+	public PhasePipeline concurrent(final String pstrName, final Body poBody)
+	{
+		return add(new Phase(pstrName, Mode.CONCURRENT, null, poBody));
+	}
+
+	/**
+	 * Adds a phase that only excludes parties whose claims conflict;
+	 * access is granted by the given scheduler.
+	 */
+	public PhasePipeline declared(final String pstrName, final ResourceScheduler poScheduler, final ClaimedBody poBody)
+	{
+		Phase oPhase = new Phase(pstrName, Mode.DECLARED, null, poBody);
+		oPhase.oScheduler = poScheduler;
+		return add(oPhase);
+	}
+
+	/**
+	 * Adds BaseThread.phase1() as a DECLARED phase with a fixed claim.
+	 */
+	public PhasePipeline phase1(final ResourceScheduler poScheduler, final ResourceScheduler.Claim poClaim)
+	{
+		return declared("PHASE I", poScheduler, new ClaimedBody()
+		{
+			public ResourceScheduler.Claim claim(BaseThread poThread)
+			{
+				return poClaim;
+			}
+
+			public void run(BaseThread poThread)
+			{
+				poThread.phase1();
+			}
+		});
+	}
+
+	/**
+	 * Adds BaseThread.phase1() as a phase.
+	 */
+	public PhasePipeline phase1(final Mode poMode)
+	{
+		return add(poMode, "PHASE I", new Body()
+		{
+			public void run(BaseThread poThread)
+			{
+				poThread.phase1();
+			}
+		});
+	}
+
+	/**
+	 * Adds BaseThread.phase2() as a phase.
+	 */
+	public PhasePipeline phase2(final Mode poMode)
+	{
+		return add(poMode, "PHASE II", new Body()
+		{
+			public void run(BaseThread poThread)
+			{
+				poThread.phase2();
+			}
+		});
+	}
+
+	/**
+	 * Makes the next phase added wait until all parties have finished all phases so far.
+	 */
+	public PhasePipeline barrier()
+	{
+		if (this.oPhases.isEmpty())
+			throw new IllegalStateException("A barrier needs a phase before it");
+
+		this.oPhases.get(this.oPhases.size() - 1).bBarrierAfter = true;
+		return this;
+	}
+
+	/**
+	 * Registers an action to be run once by whichever party is the last
+	 * one to finish the phase added most recently.
+	 *
+	 * Only successful runs of the phase count: if any party fails in it, or in
+	 * an earlier phase, the action is never run. Whoever needs to know about
+	 * failures gets them from run().
+	 */
+	public PhasePipeline onAllCompleted(final Runnable poAction)
+	{
+		if (this.oPhases.isEmpty())
+			throw new IllegalStateException("No phase to attach the action to");
+
+		this.oPhases.get(this.oPhases.size() - 1).oOnAllCompleted = poAction;
+		return this;
+	}
+
+	/**
+	 * Allows setting the TID turn-ordered phases start with to something
+	 * else than the default "1" (one), like BaseThread.setInitialTurn().
+	 */
+	public PhasePipeline setInitialTurn(final int piInitialTurn)
+	{
+		this.iInitialTurn = piInitialTurn;
+
+		for (Phase oPhase : this.oPhases)
+			oPhase.iTurn = piInitialTurn;
+
+		return this;
+	}
+
+	private PhasePipeline add(final Mode poMode, final String pstrName, final Body poBody)
+	{
+		switch (poMode)
+		{
+			case EXCLUSIVE:
+				return exclusive(pstrName, poBody);
+
+			case TURN_ORDERED:
+				return turnOrdered(pstrName, poBody);
+
+			case DECLARED:
+				throw new IllegalArgumentException("A DECLARED phase needs a scheduler and a claim");
+
+			default:
+				return concurrent(pstrName, poBody);
+		}
+	}
+
+	private PhasePipeline add(final Phase poPhase)
+	{
+		poPhase.iTurn = this.iInitialTurn;
+		poPhase.oBarrier = new Semaphore(-this.iParties + 1);
+		this.oPhases.add(poPhase);
+		return this;
+	}
+
+	/*
+	 * -------
+	 * Running
+	 * -------
+	 */
+
+	/**
+	 * Runs every phase, in order, on behalf of the calling party.
+	 *
+	 * If a phase fails, the party still checks in at every remaining barrier
+	 * and gives up its remaining turns, so the other parties do not hang;
+	 * then the exception is passed on to the caller.
+	 *
+	 * @param poThread the party; its TID decides its turn in turn-ordered phases
+	 */
+	public void run(final BaseThread poThread)
+			throws Exception
+	{
+		int iPhase = 0;
+
+		try
+		{
+			for (; iPhase < this.oPhases.size(); iPhase++)
+			{
+				Phase oPhase = this.oPhases.get(iPhase);
+
+				oPhase.execute(poThread);
+
+				if (oPhase.bBarrierAfter)
+				{
+					// Same trick as s1 in BlockManager: the semaphore starts at -parties + 1,
+					// so it only turns positive once every party has signalled it.
+					oPhase.oBarrier.V();
+					oPhase.oBarrier.P();
+					oPhase.oBarrier.V();
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			for (int i = iPhase; i < this.oPhases.size(); i++)
+			{
+				Phase oPhase = this.oPhases.get(i);
+
+				// The current phase has already passed the turn on, or forfeited it.
+				if (i > iPhase && oPhase.oMode == Mode.TURN_ORDERED)
+					oPhase.forfeitTurn(poThread.getTID());
+				if (oPhase.bBarrierAfter)
+					oPhase.oBarrier.V();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of phases declared
+	 */
+	public int getPhaseCount()
+	{
+		return this.oPhases.size();
+	}
+
+	/**
+	 * A single phase and its synchronization state.
+	 */
+	private final class Phase implements StallWatchdog.Subject
+	{
+		private final String strName;
+		private final Mode oMode;
+		private final Body oBody;
+
+		/**
+		 * Lock of an EXCLUSIVE phase
+		 */
+		private final Semaphore oLock;
+
+		/**
+		 * Grants access in a DECLARED phase
+		 */
+		private ResourceScheduler oScheduler;
+
+		/**
+		 * Barrier after this phase, if any
+		 */
+		private boolean bBarrierAfter = false;
+		private Semaphore oBarrier;
+
+		/**
+		 * Run by the last party to finish the phase
+		 */
+		private Runnable oOnAllCompleted;
+		private int iCompleted = 0;
+
+		/**
+		 * TID whose turn it is in a TURN_ORDERED phase, and TIDs that will never show up
+		 */
+		private int iTurn;
+		private final Set<Integer> oForfeited = new HashSet<Integer>();
+
+		Phase(final String pstrName, final Mode poMode, final Semaphore poLock, final Body poBody)
+		{
+			this.strName = pstrName;
+			this.oMode = poMode;
+			this.oLock = poLock;
+			this.oBody = poBody;
+		}
+
+		void execute(final BaseThread poThread)
+				throws Exception
+		{
+			switch (this.oMode)
+			{
+				case EXCLUSIVE:
+					this.oLock.P();
+					try
+					{
+						this.oBody.run(poThread);
+					}
+					finally
+					{
+						this.oLock.V();
+					}
+					break;
+
+				case TURN_ORDERED:
+					try
+					{
+						awaitTurn(poThread.getTID());
+					}
+					catch(InterruptedException e)
+					{
+						// Never had the turn: pass it on when it comes, or the higher TIDs wait forever.
+						forfeitTurn(poThread.getTID());
+						throw e;
+					}
+
+					try
+					{
+						this.oBody.run(poThread);
+					}
+					finally
+					{
+						nextTurn();
+					}
+					break;
+
+				case DECLARED:
+					this.oScheduler.run(((ClaimedBody)this.oBody).claim(poThread), new ResourceScheduler.Task()
+					{
+						public void run() throws Exception
+						{
+							oBody.run(poThread);
+						}
+					});
+					break;
+
+				default:
+					this.oBody.run(poThread);
+			}
+
+			completed();
+		}
+
+		private synchronized void awaitTurn(final int piTID)
+				throws InterruptedException
+		{
+			if (this.iTurn == piTID)
+				return;
+
+			try
+			{
+				// As in turnTestAndSet(): timed from the last move of the turn, so that
+				// a party far down the order is not reported while the others progress.
+				while (this.iTurn != piTID)
+				{
+					if (StallWatchdog.isEnabled())
+						StallWatchdog.spinning(this, "turn of " + this.strName, this.iTurn);
+
+					wait();
+				}
+			}
+			finally
+			{
+				if (StallWatchdog.isEnabled())
+					StallWatchdog.done();
+			}
+		}
+
+		private synchronized void nextTurn()
+		{
+			do
+			{
+				this.iTurn++;
+			}
+			while (this.oForfeited.remove(this.iTurn));
+
+			notifyAll();
+		}
+
+		private synchronized void forfeitTurn(final int piTID)
+		{
+			if (this.iTurn == piTID)
+				nextTurn();
+			else
+				this.oForfeited.add(piTID);
+		}
+
+		private void completed()
+		{
+			boolean bLast;
+
+			synchronized (this)
+			{
+				bLast = ++this.iCompleted == iParties;
+			}
+
+			if (bLast && this.oOnAllCompleted != null)
+				this.oOnAllCompleted.run();
+		}
+
+		/**
+		 * Turn state, for StallWatchdog dumps.
+		 */
+		public synchronized String describeStall()
+		{
+			return "turn of " + this.strName + " waits for TID " + this.iTurn + ", " + StallWatchdog.describeTID(this.iTurn) +
+					(this.oForfeited.isEmpty() ? "" : "; forfeited: " + this.oForfeited);
+		}
+
+		public String toString()
+		{
+			return this.strName + " (" + this.oMode + ")";
+		}
+	}
+
+	// The main()
+	public static void main(String[] argv)
+	{
+		// A party interrupted while it waits for its turn must not hold up the ones after it.
+		final int iParties = 4;
+		final PhasePipeline oPipeline = new PhasePipeline(iParties).turnOrdered("turns", new Body()
+		{
+			public void run(BaseThread poThread) throws Exception
+			{
+				if (poThread.getTID() == 1)
+					Thread.sleep(200);
+			}
+		});
+
+		final int[] aiFinished = new int[1];
+		BaseThread[] aoParties = new BaseThread[iParties];
+
+		for (int i = 0; i < iParties; i++)
+		{
+			aoParties[i] = new BaseThread(i + 1)
+			{
+				public void run()
+				{
+					try
+					{
+						oPipeline.run(this);
+
+						synchronized (aiFinished)
+						{
+							aiFinished[0]++;
+						}
+					}
+					catch(InterruptedException e)
+					{
+						System.out.println("TID " + getTID() + " interrupted while waiting for its turn.");
+					}
+					catch(Exception e)
+					{
+						System.err.println("TID " + getTID() + ": " + e);
+					}
+				}
+			};
+			aoParties[i].start();
+		}
+
+		try
+		{
+			Thread.sleep(50);
+			aoParties[1].interrupt();
+
+			for (BaseThread oParty : aoParties)
+				oParty.join(5000);
+
+			System.out.println(aiFinished[0] + " of " + (iParties - 1) + " other parties finished.");
+
+			if (aiFinished[0] != iParties - 1)
+				System.exit(1);
+		}
+		catch(InterruptedException e)
+		{
+			System.err.println("Caught exception : " + e.getClass().getName());
+			System.err.println("Message          : " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
+
+// EOF
@@ -0,0 +1,127 @@
+package common;
+
+/**
+ * Class RateLimitedSemaphore
+ * Token-bucket flavour of the Semaphore: permits are minted by the clock
+ * at a fixed rate, up to a fixed burst size, instead of by Signal().
+ *
+ * Used to throttle how fast workers (e.g. AcquireBlock/ReleaseBlock) may hit
+ * a shared resource: call P() (or any other acquire variant of Semaphore)
+ * before each operation. Refills are computed lazily from timestamps every
+ * time somebody looks at the permits, so there is no timer thread; a thread
+ * waiting for a token simply sleeps until the next one is due.
+ *
+ * NOTE: Signal()/V() do not add tokens. A throttle that got a token back
+ * after every use would not be throttling anything. They merely wake the
+ * waiters up, which is harmless. So this is no drop-in replacement for a
+ * Semaphore used as a P()/V() mutex: V() returns no permit, and the next P()
+ * waits for the clock instead of for the holder.
+ *
+ * BlockManager uses one, with -Dblock.rate and -Dblock.burst.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class RateLimitedSemaphore extends Semaphore
+{
+	/**
+	 * Max number of tokens the bucket holds
+	 */
+	private final int iBurst;
+
+	/**
+	 * Time it takes to mint one token
+	 */
+	private final long lNanosPerPermit;
+
+	/**
+	 * Point in time up to which minted tokens have been accounted for
+	 */
+	private long lLastRefillNanos;
+
+	/**
+	 * Starts with a full bucket.
+	 *
+	 * @param pdPermitsPerSecond refill rate, must be positive
+	 * @param piBurst bucket size, i.e. how many permits may be taken back to back, at least 1;
+	 * a P(n) with n above it can never succeed
+	 */
+	public RateLimitedSemaphore(final double pdPermitsPerSecond, final int piBurst)
+	{
+		super(piBurst);
+
+		if (!(pdPermitsPerSecond > 0))
+			throw new IllegalArgumentException("Rate must be positive: " + pdPermitsPerSecond);
+		if (piBurst < 1)
+			throw new IllegalArgumentException("Burst size must be at least 1: " + piBurst);
+
+		this.iBurst = piBurst;
+		this.lNanosPerPermit = Math.max(1L, (long)(1e9 / pdPermitsPerSecond));
+		this.lLastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * Does not mint a token, see the class comment.
+	 */
+	public synchronized void Signal()
+	{
+		notifyAll();
+	}
+
+	/**
+	 * Does not mint tokens, see the class comment.
+	 */
+	public synchronized void V(final int piPermits)
+	{
+		checkPermits(piPermits);
+		notifyAll();
+	}
+
+	/**
+	 * Mints the tokens earned since the last refill, capped at the burst size.
+	 * @return nanoseconds until the next token is due
+	 */
+	protected long refill()
+	{
+		long lNow = System.nanoTime();
+		long lEarned = (lNow - this.lLastRefillNanos) / this.lNanosPerPermit;
+
+		if (lEarned > 0)
+		{
+			int iRoom = this.iBurst - getValue();
+
+			if (lEarned >= iRoom)
+			{
+				// Bucket is full: tokens beyond the burst are lost, not banked.
+				if (iRoom > 0)
+					addPermits(iRoom);
+				this.lLastRefillNanos = lNow;
+			}
+			else
+			{
+				addPermits((int)lEarned);
+				this.lLastRefillNanos += lEarned * this.lNanosPerPermit;
+			}
+		}
+
+		return this.lNanosPerPermit - (lNow - this.lLastRefillNanos);
+	}
+
+	/**
+	 * @return configured bucket size
+	 */
+	public int getBurst()
+	{
+		return this.iBurst;
+	}
+
+	/**
+	 * @return configured refill rate, in permits per second
+	 */
+	public double getPermitsPerSecond()
+	{
+		return 1e9 / this.lNanosPerPermit;
+	}
+}
+
+// EOF
@@ -0,0 +1,310 @@
+package common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class ResourceScheduler
+ * Runs tasks that declare up front which shared resources they read and write.
+ *
+ * Tasks only exclude each other as much as their declarations require:
+ * readers of a resource run together, a writer runs alone on that resource,
+ * and tasks with disjoint (or empty) declarations do not synchronize at all.
+ * Resources are always locked in name order, so two tasks needing the same
+ * resources can never deadlock.
+ *
+ * The scheduler also keeps track of how much time tasks spend running and of
+ * the wall time from the first start to the last end, which tells how much
+ * parallelism was gained over running every task under one global mutex.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class ResourceScheduler
+{
+	/**
+	 * What a task may do.
+	 */
+	public interface Task
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Resource locks, created on first use. Guarded by this.
+	 */
+	private final Map<String, ResourceLock> oLocks = new HashMap<String, ResourceLock>();
+
+	/*
+	 * Statistics. Guarded by this.
+	 */
+	private int iTasks = 0;
+	private int iRunning = 0;
+	private int iPeakRunning = 0;
+	private long lBusyNanos = 0;
+	private long lFirstStartNanos = 0;
+	private long lLastEndNanos = 0;
+
+	/**
+	 * Runs a task once it holds the access its claim declares.
+	 */
+	public void run(final Claim poClaim, final Task poTask)
+			throws Exception
+	{
+		ResourceLock[] aoLocks = locksFor(poClaim);
+
+		int iLocked = 0;
+		boolean bStarted = false;
+		long lStart = 0;
+
+		try
+		{
+			for (; iLocked < aoLocks.length; iLocked++)
+				aoLocks[iLocked].lock(poClaim.isWritten(aoLocks[iLocked].strName));
+
+			lStart = started();
+			bStarted = true;
+			poTask.run();
+		}
+		finally
+		{
+			if (bStarted)
+				finished(lStart);
+
+			while (--iLocked >= 0)
+				aoLocks[iLocked].unlock(poClaim.isWritten(aoLocks[iLocked].strName));
+		}
+	}
+
+	/**
+	 * @return the locks of all resources in the claim, in name order
+	 */
+	private synchronized ResourceLock[] locksFor(final Claim poClaim)
+	{
+		ResourceLock[] aoLocks = new ResourceLock[poClaim.astrResources.length];
+
+		for (int i = 0; i < aoLocks.length; i++)
+		{
+			String strName = poClaim.astrResources[i];
+			ResourceLock oLock = this.oLocks.get(strName);
+
+			if (oLock == null)
+			{
+				oLock = new ResourceLock(strName);
+				this.oLocks.put(strName, oLock);
+			}
+
+			aoLocks[i] = oLock;
+		}
+
+		return aoLocks;
+	}
+
+	private synchronized long started()
+	{
+		long lNow = System.nanoTime();
+
+		if (this.iTasks == 0)
+			this.lFirstStartNanos = lNow;
+
+		this.iTasks++;
+		this.iPeakRunning = Math.max(this.iPeakRunning, ++this.iRunning);
+
+		return lNow;
+	}
+
+	private synchronized void finished(final long plStartNanos)
+	{
+		long lNow = System.nanoTime();
+
+		this.iRunning--;
+		this.lBusyNanos += lNow - plStartNanos;
+		this.lLastEndNanos = Math.max(this.lLastEndNanos, lNow);
+	}
+
+	/*------- Statistics -------*/
+
+	/**
+	 * @return average number of tasks running at once between the first start and the
+	 * last end; a global mutex would give at most 1.0
+	 */
+	public synchronized double getParallelism()
+	{
+		long lWall = this.lLastEndNanos - this.lFirstStartNanos;
+		return lWall > 0 ? (double)this.lBusyNanos / lWall : 1.0;
+	}
+
+	/**
+	 * @return one-line summary of the statistics
+	 */
+	public synchronized String report()
+	{
+		return String.format
+		(
+			"%d tasks, %.3f ms busy over %.3f ms wall: average parallelism %.2f (peak %d)",
+			this.iTasks,
+			this.lBusyNanos / 1e6,
+			(this.lLastEndNanos - this.lFirstStartNanos) / 1e6,
+			getParallelism(),
+			this.iPeakRunning
+		);
+	}
+
+	/**
+	 * Class Claim
+	 * The resources a task reads and writes. Immutable; build it with
+	 * Claim.none(), Claim.reading(...) and Claim.writing(...), and combine with the instance methods.
+	 */
+	public static final class Claim
+	{
+		private static final Claim NONE = new Claim(new TreeMap<String, Boolean>());
+
+		/**
+		 * Resource names in lock order, and whether each one is written
+		 */
+		private final String[] astrResources;
+		private final boolean[] abWrites;
+
+		private Claim(final TreeMap<String, Boolean> poAccess)
+		{
+			this.astrResources = poAccess.keySet().toArray(new String[0]);
+			this.abWrites = new boolean[this.astrResources.length];
+
+			for (int i = 0; i < this.astrResources.length; i++)
+				this.abWrites[i] = poAccess.get(this.astrResources[i]);
+		}
+
+		/**
+		 * @return a claim on nothing: the task never waits for anybody
+		 */
+		public static Claim none()
+		{
+			return NONE;
+		}
+
+		public static Claim reading(final String... pastrResources)
+		{
+			return NONE.reads(pastrResources);
+		}
+
+		public static Claim writing(final String... pastrResources)
+		{
+			return NONE.writes(pastrResources);
+		}
+
+		/**
+		 * @return this claim plus read access to the given resources
+		 */
+		public Claim reads(final String... pastrResources)
+		{
+			TreeMap<String, Boolean> oAccess = toMap();
+
+			for (String strName : pastrResources)
+				if (!oAccess.containsKey(strName))
+					oAccess.put(strName, Boolean.FALSE);
+
+			return new Claim(oAccess);
+		}
+
+		/**
+		 * @return this claim plus write access to the given resources
+		 */
+		public Claim writes(final String... pastrResources)
+		{
+			TreeMap<String, Boolean> oAccess = toMap();
+
+			for (String strName : pastrResources)
+				oAccess.put(strName, Boolean.TRUE);
+
+			return new Claim(oAccess);
+		}
+
+		private boolean isWritten(final String pstrResource)
+		{
+			return this.abWrites[Arrays.binarySearch(this.astrResources, pstrResource)];
+		}
+
+		private TreeMap<String, Boolean> toMap()
+		{
+			TreeMap<String, Boolean> oAccess = new TreeMap<String, Boolean>();
+
+			for (int i = 0; i < this.astrResources.length; i++)
+				oAccess.put(this.astrResources[i], this.abWrites[i]);
+
+			return oAccess;
+		}
+
+		public String toString()
+		{
+			StringBuilder oOut = new StringBuilder("{");
+
+			for (int i = 0; i < this.astrResources.length; i++)
+				oOut.append(i == 0 ? "" : ", ").append(this.abWrites[i] ? "writes " : "reads ").append(this.astrResources[i]);
+
+			return oOut.append("}").toString();
+		}
+	}
+
+	/**
+	 * Readers/writer lock of one resource. Writers take precedence over
+	 * newly arriving readers, so a stream of readers cannot starve them.
+	 */
+	private static final class ResourceLock
+	{
+		private final String strName;
+		private int iReaders = 0;
+		private int iWritersWaiting = 0;
+		private boolean bWriter = false;
+
+		ResourceLock(final String pstrName)
+		{
+			this.strName = pstrName;
+		}
+
+		synchronized void lock(final boolean pbWrite)
+				throws InterruptedException
+		{
+			if (pbWrite)
+			{
+				this.iWritersWaiting++;
+
+				try
+				{
+					while (this.bWriter || this.iReaders > 0)
+						wait();
+				}
+				catch(InterruptedException e)
+				{
+					// Readers held back because of us may go now.
+					this.iWritersWaiting--;
+					notifyAll();
+					throw e;
+				}
+
+				this.iWritersWaiting--;
+				this.bWriter = true;
+			}
+			else
+			{
+				while (this.bWriter || this.iWritersWaiting > 0)
+					wait();
+
+				this.iReaders++;
+			}
+		}
+
+		synchronized void unlock(final boolean pbWrite)
+		{
+			if (pbWrite)
+				this.bWriter = false;
+			else
+				this.iReaders--;
+
+			notifyAll();
+		}
+	}
+}
+
+// EOF
@@ -1,5 +1,9 @@
 package common;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Class Semaphore
  * Implements artificial semaphore built on top of Java's sync primitives.
@@ -9,13 +13,27 @@ package common;
  *
  * @author Serguei A. Mokhov, mokhov@cs.concordia.ca; Inspired by previous code by Prof. D. Probst
  */
-public class Semaphore
+public class Semaphore implements StallWatchdog.Subject
 {
 	/**
 	 * Current semaphore's value
 	 */
 	private int iValue;
 
+	/**
+	 * Number of threads currently blocked in P(n) with n > 1.
+	 * While there are any, a single Signal() has to wake everybody:
+	 * notify() could pick a bulk waiter that still cannot proceed
+	 * and leave a single-permit waiter asleep next to a free permit.
+	 */
+	private int iBulkWaiters = 0;
+
+	/**
+	 * Permits taken and not returned yet, per thread; only kept
+	 * while the StallWatchdog is on, and created the first time then
+	 */
+	private Map<Thread, Integer> oHolders = null;
+
 	/*
 	 * ------------
 	 * Constructors
@@ -52,9 +70,19 @@ public class Semaphore
 	 */
 	public synchronized boolean isLocked()
 	{
+		refill();
 		return (this.iValue <= 0);
 	}
 
+	/**
+	 * @return number of permits that could be taken right now (may be negative)
+	 */
+	public synchronized int availablePermits()
+	{
+		refill();
+		return this.iValue;
+	}
+
 	/*
 	 * -----------------------------
 	 * Standard semaphore operations
@@ -69,14 +97,28 @@ public class Semaphore
 	 */
 	public synchronized void Wait()
 	{
+		boolean bWatched = false;
+
 		try
 		{
 			while(this.iValue <= 0)
 			{
-				wait();
+				long lRefill = refill();
+
+				if (this.iValue > 0)
+					break;
+
+				if (!bWatched && StallWatchdog.isEnabled())
+				{
+					StallWatchdog.waiting(this, "P()");
+					bWatched = true;
+				}
+
+				sleep(lRefill);
 			}
 
 			this.iValue--;
+			taken(1);
 		}
 		catch(InterruptedException e)
 		{
@@ -88,6 +130,11 @@ public class Semaphore
 
 			e.printStackTrace();
 		}
+		finally
+		{
+			if (bWatched)
+				StallWatchdog.done();
+		}
 	}
 
 	/**
@@ -100,7 +147,12 @@ public class Semaphore
 	public synchronized void Signal()
 	{
 		++this.iValue;
-		notify();
+		returned(1);
+
+		if (this.iBulkWaiters > 0)
+			notifyAll();
+		else
+			notify();
 	}
 
 	/**
@@ -118,6 +170,364 @@ public class Semaphore
 	{
 		this.Signal();
 	}
+
+	/*
+	 * ------------------------------
+	 * Multi-permit (bulk) operations
+	 * ------------------------------
+	 */
+
+	/**
+	 * Takes piPermits permits at once, sleeping until all of them are available.
+	 * Permits are never grabbed partially, so two threads each collecting
+	 * a share of the permits they need cannot deadlock each other.
+	 *
+	 * An interrupt does not cut the wait short: the caller always returns
+	 * holding the permits, with its interrupt status set again if it was
+	 * interrupted meanwhile. PInterruptibly(int) gives up instead.
+	 *
+	 * @param piPermits number of permits to take, at least 1
+	 */
+	public synchronized void P(final int piPermits)
+	{
+		checkPermits(piPermits);
+
+		boolean bInterrupted = false;
+
+		while (true)
+		{
+			try
+			{
+				acquire(piPermits, false, 0L);
+				break;
+			}
+			catch(InterruptedException e)
+			{
+				bInterrupted = true;
+			}
+		}
+
+		if (bInterrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns piPermits permits at once.
+	 *
+	 * NOTES: Waiters may want different numbers of permits, so there is no
+	 * telling which of them can proceed now; they are all woken with a single
+	 * notifyAll() and re-check, rather than with piPermits calls to notify().
+	 *
+	 * @param piPermits number of permits to return, at least 1
+	 */
+	public synchronized void V(final int piPermits)
+	{
+		checkPermits(piPermits);
+
+		if (piPermits == 1)
+		{
+			this.Signal();
+			return;
+		}
+
+		this.iValue += piPermits;
+		returned(piPermits);
+		notifyAll();
+	}
+
+	/**
+	 * Takes one permit if one is available right now, never sleeps.
+	 * @return true if the permit was taken
+	 */
+	public synchronized boolean tryP()
+	{
+		return tryP(1);
+	}
+
+	/**
+	 * Takes piPermits permits if they are all available right now, never sleeps.
+	 * @param piPermits number of permits to take, at least 1
+	 * @return true if the permits were taken, false if nothing was taken
+	 */
+	public synchronized boolean tryP(final int piPermits)
+	{
+		checkPermits(piPermits);
+		refill();
+
+		if (this.iValue < piPermits)
+			return false;
+
+		this.iValue -= piPermits;
+		taken(piPermits);
+		return true;
+	}
+
+	/*
+	 * ---------------------------------------------
+	 * Interruptible and timed (deadline) operations
+	 * ---------------------------------------------
+	 */
+
+	/**
+	 * Like P(), but gives up when the thread is interrupted.
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public synchronized void PInterruptibly()
+			throws InterruptedException
+	{
+		acquire(1, false, 0L);
+	}
+
+	/**
+	 * Like P(int), but gives up when the thread is interrupted.
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public synchronized void PInterruptibly(final int piPermits)
+			throws InterruptedException
+	{
+		checkPermits(piPermits);
+		acquire(piPermits, false, 0L);
+	}
+
+	/**
+	 * Takes one permit, waiting at most the given time for it.
+	 * @return true if the permit was taken, false on timeout
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public synchronized boolean tryP(final long plTimeout, final TimeUnit poUnit)
+			throws InterruptedException
+	{
+		return tryP(1, plTimeout, poUnit);
+	}
+
+	/**
+	 * Takes piPermits permits, waiting at most the given time for all of them.
+	 * @return true if the permits were taken, false on timeout (nothing is taken then)
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public synchronized boolean tryP(final int piPermits, final long plTimeout, final TimeUnit poUnit)
+			throws InterruptedException
+	{
+		checkPermits(piPermits);
+
+		// Fast path first: no clock read when the permits are already there.
+		// (A subclass's refill() may still read its own clock.)
+		refill();
+
+		if (this.iValue >= piPermits)
+		{
+			this.iValue -= piPermits;
+			taken(piPermits);
+			return true;
+		}
+
+		return acquire(piPermits, true, System.nanoTime() + poUnit.toNanos(plTimeout));
+	}
+
+	/**
+	 * Takes piPermits permits, waiting for them no later than an absolute deadline.
+	 * Lets a caller spread one latency budget over several acquisitions.
+	 *
+	 * @param plDeadlineNanos deadline on the System.nanoTime() clock
+	 * @return true if the permits were taken, false once the deadline has passed (nothing is taken then)
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public synchronized boolean tryPUntil(final int piPermits, final long plDeadlineNanos)
+			throws InterruptedException
+	{
+		checkPermits(piPermits);
+		return acquire(piPermits, true, plDeadlineNanos);
+	}
+
+	/**
+	 * Common waiting loop for the multi-permit, interruptible and timed operations.
+	 * Must be called holding the monitor.
+	 *
+	 * A thread that leaves without its permits (timeout or interrupt) might have
+	 * consumed the notify() meant for somebody else, so it passes the wake-up on
+	 * if permits are available. Nothing is taken or left behind in that case.
+	 *
+	 * @param pbTimed whether plDeadlineNanos applies
+	 * @return true once the permits are taken, false if the deadline passed first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean acquire(final int piPermits, final boolean pbTimed, final long plDeadlineNanos)
+			throws InterruptedException
+	{
+		boolean bAcquired = false;
+		boolean bWatched = false;
+
+		if (piPermits > 1)
+			this.iBulkWaiters++;
+
+		try
+		{
+			while(true)
+			{
+				long lRefill = refill();
+
+				if (this.iValue >= piPermits)
+					break;
+
+				if (pbTimed)
+				{
+					long lRemaining = plDeadlineNanos - System.nanoTime();
+
+					if (lRemaining <= 0)
+						return false;
+
+					if (lRefill == 0 || lRefill > lRemaining)
+						lRefill = lRemaining;
+				}
+
+				if (!bWatched && StallWatchdog.isEnabled())
+				{
+					StallWatchdog.waiting(this, piPermits == 1 ? "P()" : "P(" + piPermits + ")");
+					bWatched = true;
+				}
+
+				sleep(lRefill);
+			}
+
+			this.iValue -= piPermits;
+			taken(piPermits);
+			bAcquired = true;
+
+			return true;
+		}
+		finally
+		{
+			if (piPermits > 1)
+				this.iBulkWaiters--;
+
+			if (bWatched)
+				StallWatchdog.done();
+
+			if (!bAcquired && this.iValue > 0)
+			{
+				if (this.iBulkWaiters > 0)
+					notifyAll();
+				else
+					notify();
+			}
+		}
+	}
+
+	/*
+	 * ---------------------
+	 * Hooks for subclasses
+	 * ---------------------
+	 */
+
+	/**
+	 * Called with the monitor held every time a thread is about to check
+	 * for permits. The plain semaphore only gets permits from Signal(),
+	 * but a subclass may mint them here (e.g. from the clock) with addPermits().
+	 *
+	 * @return nanoseconds until refill() may have more permits to give,
+	 * or 0 if only Signal() can make permits appear
+	 */
+	protected long refill()
+	{
+		return 0L;
+	}
+
+	/**
+	 * Adds permits without waking anybody; for use from refill(),
+	 * whose caller is about to look at the value anyway.
+	 * Must be called holding the monitor.
+	 */
+	protected final void addPermits(final int piPermits)
+	{
+		this.iValue += piPermits;
+	}
+
+	/**
+	 * Current value, without calling refill() first.
+	 * Must be called holding the monitor.
+	 */
+	protected final int getValue()
+	{
+		return this.iValue;
+	}
+
+	/**
+	 * Current value and recorded holders, for StallWatchdog dumps.
+	 */
+	public synchronized String describeStall()
+	{
+		StringBuilder oState = new StringBuilder(getClass().getSimpleName())
+			.append('@').append(Integer.toHexString(System.identityHashCode(this)))
+			.append(" value ").append(this.iValue);
+
+		if (this.oHolders == null || this.oHolders.isEmpty())
+			return oState.append(", no holder recorded").toString();
+
+		oState.append(", held by");
+
+		for (Map.Entry<Thread, Integer> oHolder : this.oHolders.entrySet())
+			oState.append(' ').append(StallWatchdog.describe(oHolder.getKey())).append(" x").append(oHolder.getValue());
+
+		return oState.toString();
+	}
+
+	/**
+	 * Records permits taken by the current thread while the StallWatchdog is on.
+	 * Must be called holding the monitor.
+	 */
+	private void taken(final int piPermits)
+	{
+		if (!StallWatchdog.isEnabled())
+			return;
+
+		if (this.oHolders == null)
+			this.oHolders = new HashMap<Thread, Integer>();
+
+		Integer oHeld = this.oHolders.get(Thread.currentThread());
+		this.oHolders.put(Thread.currentThread(), oHeld == null ? piPermits : oHeld + piPermits);
+	}
+
+	/**
+	 * Forgets permits the current thread returns; a thread signalling
+	 * permits it never took (a producer, say) holds nothing to forget.
+	 * Must be called holding the monitor.
+	 */
+	private void returned(final int piPermits)
+	{
+		if (!StallWatchdog.isEnabled() || this.oHolders == null)
+			return;
+
+		Integer oHeld = this.oHolders.get(Thread.currentThread());
+
+		if (oHeld == null)
+			return;
+
+		if (oHeld > piPermits)
+			this.oHolders.put(Thread.currentThread(), oHeld - piPermits);
+		else
+			this.oHolders.remove(Thread.currentThread());
+	}
+
+	/**
+	 * Waits on the monitor for a Signal(), or at most plNanos if that is not 0.
+	 */
+	private void sleep(final long plNanos)
+			throws InterruptedException
+	{
+		if (plNanos > 0)
+			TimeUnit.NANOSECONDS.timedWait(this, plNanos);
+		else
+			wait();
+	}
+
+	/**
+	 * Rejects non-positive permit counts. Subclasses overriding P(int)/V(int) must call it too.
+	 */
+	protected static void checkPermits(final int piPermits)
+	{
+		if (piPermits < 1)
+			throw new IllegalArgumentException("Number of permits must be positive: " + piPermits);
+	}
 }
 
 // EOF
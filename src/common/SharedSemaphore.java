@@ -0,0 +1,152 @@
+package common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class SharedSemaphore
+ * Counterpart of Semaphore whose value lives in a (memory-mapped) buffer,
+ * so that threads of different processes mapping the same file can share it.
+ *
+ * The value is a 64-bit word updated with compare-and-set only. Java has no
+ * way to sleep on a word shared with another process, so a blocked P() spins
+ * briefly, then yields, then sleeps for increasing (bounded) periods and looks again.
+ * Like Semaphore, it may be initialized to a negative value.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public class SharedSemaphore
+{
+	/**
+	 * Bytes taken in the buffer
+	 */
+	public static final int SIZE = 8;
+
+	private static final VarHandle LONGS =
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/*
+	 * Back-off while waiting
+	 */
+	private static final int SPINS = 128;
+	private static final int YIELDS = 64;
+	private static final long MAX_SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+	private final ByteBuffer oBuffer;
+	private final int iOffset;
+
+	/**
+	 * Attaches to a semaphore that already lives in the buffer.
+	 *
+	 * @param poBuffer direct (usually mapped) buffer
+	 * @param piOffset where the value lives; must be 8-byte aligned
+	 */
+	public SharedSemaphore(final ByteBuffer poBuffer, final int piOffset)
+	{
+		if (!poBuffer.isDirect())
+			throw new IllegalArgumentException("A shared semaphore needs a direct buffer");
+		if (piOffset % SIZE != 0)
+			throw new IllegalArgumentException("Offset must be 8-byte aligned: " + piOffset);
+
+		this.oBuffer = poBuffer;
+		this.iOffset = piOffset;
+	}
+
+	/**
+	 * Sets the value. Only for whoever creates the shared region, before anybody else uses it.
+	 */
+	public void initialize(final long plValue)
+	{
+		LONGS.setVolatile(this.oBuffer, this.iOffset, plValue);
+	}
+
+	/**
+	 * @return true if P() would block right now
+	 */
+	public boolean isLocked()
+	{
+		return value() <= 0;
+	}
+
+	/**
+	 * @return the current value
+	 */
+	public long value()
+	{
+		return (long)LONGS.getVolatile(this.oBuffer, this.iOffset);
+	}
+
+	/**
+	 * Takes a permit if one is available right now, never blocks.
+	 * @return true if the permit was taken
+	 */
+	public boolean tryP()
+	{
+		long lValue;
+
+		while ((lValue = value()) > 0)
+		{
+			if (LONGS.compareAndSet(this.oBuffer, this.iOffset, lValue, lValue - 1))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Proberen: takes a permit, waiting for one as long as it takes.
+	 */
+	public void P()
+	{
+		for (int iRound = 0; !tryP(); iRound++)
+			backOff(iRound);
+	}
+
+	/**
+	 * Takes a permit, waiting at most the given time for it.
+	 * @return true if the permit was taken, false on timeout
+	 * @throws InterruptedException if interrupted while waiting; no permit is taken then
+	 */
+	public boolean tryP(final long plTimeout, final TimeUnit poUnit)
+			throws InterruptedException
+	{
+		long lDeadline = System.nanoTime() + poUnit.toNanos(plTimeout);
+
+		for (int iRound = 0; !tryP(); iRound++)
+		{
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			if (System.nanoTime() - lDeadline >= 0)
+				return false;
+
+			backOff(iRound);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Verhogen: returns a permit.
+	 */
+	public void V()
+	{
+		LONGS.getAndAdd(this.oBuffer, this.iOffset, 1L);
+	}
+
+	private static void backOff(final int piRound)
+	{
+		if (piRound < SPINS)
+			Thread.onSpinWait();
+		else if (piRound < SPINS + YIELDS)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(Math.min(MAX_SLEEP_NANOS, 1000L << Math.min(20, (piRound - SPINS - YIELDS) / 8)));
+	}
+}
+
+// EOF
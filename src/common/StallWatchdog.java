@@ -0,0 +1,300 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class StallWatchdog
+ * Finds threads that stopped making progress: blocked in a Semaphore
+ * for too long, waiting for a turn that does not come, or spinning on
+ * BaseThread.turnTestAndSet() while the turn never changes.
+ *
+ * Instrumented code checks isEnabled() (one volatile read) before doing
+ * anything else, so it costs nothing more while the watchdog is off.
+ * While it is on, every wait is recorded in a map keyed by thread, and
+ * a daemon thread scans that map; once a record is older than the
+ * threshold, it prints every stalled thread along with what it waits
+ * for: the holders and value of a semaphore, or the TID the turn
+ * counter is at and whether any live thread has that TID.
+ *
+ * Semaphore holders are only recorded while the watchdog is on, so
+ * start it before the threads it is meant to watch.
+ *
+ * $Revision: 1.0 $
+ * $Last Revision Date: 2019/02/02 $
+ */
+public final class StallWatchdog
+{
+	/**
+	 * Whatever a thread can wait on and describe itself for a dump.
+	 */
+	public interface Subject
+	{
+		/**
+		 * @return state explaining why waiters may be stuck, e.g. who holds it
+		 */
+		String describeStall();
+	}
+
+	private static volatile boolean sbEnabled = false;
+
+	/**
+	 * Current wait of every thread that is waiting
+	 */
+	private static final Map<Thread, Stall> soStalls = new ConcurrentHashMap<Thread, Stall>();
+
+	private static Thread soWatcher = null;
+	private static long slThresholdNanos;
+
+	private StallWatchdog()
+	{
+	}
+
+	/**
+	 * Starts watching. Waits longer than the threshold get reported, each once.
+	 * @param plThresholdMillis how long a thread may go without progress
+	 */
+	public static synchronized void start(final long plThresholdMillis)
+	{
+		if (plThresholdMillis <= 0)
+			throw new IllegalArgumentException("Threshold must be positive: " + plThresholdMillis);
+
+		stop();
+
+		slThresholdNanos = plThresholdMillis * 1000000L;
+		sbEnabled = true;
+
+		soWatcher = new Thread("StallWatchdog")
+		{
+			public void run()
+			{
+				watch(Math.max(10, plThresholdMillis / 4));
+			}
+		};
+		soWatcher.setDaemon(true);
+		soWatcher.start();
+	}
+
+	/**
+	 * Stops watching and forgets every recorded wait.
+	 */
+	public static synchronized void stop()
+	{
+		sbEnabled = false;
+
+		if (soWatcher != null)
+		{
+			soWatcher.interrupt();
+			soWatcher = null;
+		}
+
+		soStalls.clear();
+	}
+
+	/**
+	 * @return whether waits are being recorded
+	 */
+	public static boolean isEnabled()
+	{
+		return sbEnabled;
+	}
+
+	/**
+	 * @return every wait currently recorded, longest first, one per line
+	 */
+	public static String dump()
+	{
+		return dump(0L);
+	}
+
+	/*
+	 * ---------------------------------------------------------
+	 * Hooks for the instrumented code; check isEnabled() first
+	 * ---------------------------------------------------------
+	 */
+
+	/**
+	 * The current thread starts blocking.
+	 * @param pstrWhere what it is blocked in, e.g. "P()"
+	 */
+	static void waiting(final Subject poOn, final String pstrWhere)
+	{
+		soStalls.put(Thread.currentThread(), new Stall(poOn, pstrWhere, 0));
+	}
+
+	/**
+	 * The current thread polls again without success.
+	 * @param piProgress a value that changes whenever the thing polled makes progress
+	 * (the turn, for turnTestAndSet()); the stall is timed from its last change
+	 */
+	static void spinning(final Subject poOn, final String pstrWhere, final int piProgress)
+	{
+		Stall oStall = soStalls.get(Thread.currentThread());
+
+		if (oStall == null || oStall.oOn != poOn)
+		{
+			oStall = new Stall(poOn, pstrWhere, piProgress);
+			oStall.lTries = 1;
+			soStalls.put(Thread.currentThread(), oStall);
+			return;
+		}
+
+		oStall.lTries++;
+
+		if (oStall.iProgress != piProgress)
+			oStall.restart(piProgress);
+	}
+
+	/**
+	 * The current thread no longer waits.
+	 */
+	static void done()
+	{
+		soStalls.remove(Thread.currentThread());
+	}
+
+	/**
+	 * @return thread name, plus TID and liveness where it tells something
+	 */
+	static String describe(final Thread poThread)
+	{
+		String strName = poThread.getName();
+
+		if (poThread instanceof BaseThread)
+			strName += " [TID=" + ((BaseThread)poThread).getTID() + "]";
+		if (!poThread.isAlive())
+			strName += " (terminated)";
+
+		return strName;
+	}
+
+	/**
+	 * @return which live thread has the given TID, if any; for turn counters
+	 */
+	static String describeTID(final int piTID)
+	{
+		for (Thread oThread : Thread.getAllStackTraces().keySet())
+			if (oThread instanceof BaseThread && ((BaseThread)oThread).getTID() == piTID)
+				return "TID " + piTID + " is " + describe(oThread);
+
+		return "no live thread has TID " + piTID;
+	}
+
+	/*
+	 * -------------------
+	 * The watchdog thread
+	 * -------------------
+	 */
+
+	private static void watch(final long plPeriodMillis)
+	{
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				Thread.sleep(plPeriodMillis);
+
+				long lNow = System.nanoTime();
+				boolean bNewStall = false;
+
+				for (Map.Entry<Thread, Stall> oEntry : soStalls.entrySet())
+				{
+					Stall oStall = oEntry.getValue();
+
+					// A thread that died polling is not stuck, just gone.
+					if (!oEntry.getKey().isAlive())
+						soStalls.remove(oEntry.getKey(), oStall);
+					else if (!oStall.bReported && lNow - oStall.lSince > slThresholdNanos)
+					{
+						oStall.bReported = true;
+						bNewStall = true;
+					}
+				}
+
+				if (bNewStall)
+					System.err.print(dump(slThresholdNanos));
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// stopped
+		}
+	}
+
+	private static String dump(final long plMinNanos)
+	{
+		long lNow = System.nanoTime();
+		List<Map.Entry<Thread, Stall>> oStalled = new ArrayList<Map.Entry<Thread, Stall>>();
+
+		for (Map.Entry<Thread, Stall> oEntry : soStalls.entrySet())
+			if (lNow - oEntry.getValue().lSince >= plMinNanos)
+				oStalled.add(oEntry);
+
+		oStalled.sort(new java.util.Comparator<Map.Entry<Thread, Stall>>()
+		{
+			public int compare(Map.Entry<Thread, Stall> poA, Map.Entry<Thread, Stall> poB)
+			{
+				return Long.compare(poA.getValue().lSince, poB.getValue().lSince);
+			}
+		});
+
+		StringBuilder oDump = new StringBuilder();
+
+		if (plMinNanos > 0)
+			oDump.append("StallWatchdog: ").append(oStalled.size())
+				.append(" thread(s) without progress for more than ").append(plMinNanos / 1000000).append(" ms\n");
+
+		for (Map.Entry<Thread, Stall> oEntry : oStalled)
+		{
+			Stall oStall = oEntry.getValue();
+
+			oDump.append("    ").append(describe(oEntry.getKey()))
+				.append(oStall.lTries > 0 ? " spinning " : " blocked ")
+				.append((lNow - oStall.lSince) / 1000000).append(" ms in ").append(oStall.strWhere);
+
+			if (oStall.lTries > 0)
+				oDump.append(" (").append(oStall.lTries).append(" tries)");
+
+			oDump.append(": ").append(oStall.oOn.describeStall()).append('\n');
+		}
+
+		return oDump.toString();
+	}
+
+	/**
+	 * One thread's current wait.
+	 */
+	private static final class Stall
+	{
+		final Subject oOn;
+		final String strWhere;
+
+		volatile long lSince;
+		volatile int iProgress;
+		volatile boolean bReported = false;
+
+		/**
+		 * Failed polls, only written by the waiting thread; 0 for blocking waits
+		 */
+		volatile long lTries = 0;
+
+		Stall(final Subject poOn, final String pstrWhere, final int piProgress)
+		{
+			this.oOn = poOn;
+			this.strWhere = pstrWhere;
+			this.iProgress = piProgress;
+			this.lSince = System.nanoTime();
+		}
+
+		void restart(final int piProgress)
+		{
+			this.iProgress = piProgress;
+			this.lSince = System.nanoTime();
+			this.bReported = false;
+		}
+	}
+}
+
+// EOF